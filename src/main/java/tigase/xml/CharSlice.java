@@ -0,0 +1,159 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+/**
+ * <code>CharSlice</code> is a read-only view of a range of characters in an
+ * array. Parser passes slices pointing directly to its input buffer to
+ * {@link SimpleSliceHandler} so parsed names, attributes and character data
+ * are not copied. The same slice instance is reused by the parser, therefore
+ * it is valid only during the handler callback it was passed to. Handler must
+ * copy the content, for example using <code>toString()</code>, if it is needed
+ * later.
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public final class CharSlice
+				implements CharSequence {
+	private char[] array  = null;
+	private int    length = 0;
+	private int    offset = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	CharSlice() {}
+
+	CharSlice(char[] array, int offset, int length) {
+		set(array, offset, length);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Creates a new slice with a copy of the given characters.
+	 *
+	 * @param chars to copy
+	 *
+	 * @return a new <code>CharSlice</code>
+	 */
+	public static CharSlice valueOf(CharSequence chars) {
+		if (chars == null) {
+			return null;
+		}
+
+		char[] array = new char[chars.length()];
+
+		for (int i = 0; i < array.length; i++) {
+			array[i] = chars.charAt(i);
+		}
+
+		return new CharSlice(array, 0, array.length);
+	}
+
+	/**
+	 * Appends characters of the slice to the given buffer.
+	 *
+	 * @param buf to append characters to
+	 *
+	 * @return the given buffer
+	 */
+	public StringBuilder appendTo(StringBuilder buf) {
+		return buf.append(array, offset, length);
+	}
+
+	/**
+	 * Returns underlying array. Slice characters start at <code>offset()</code>
+	 * index of the array. Array content must not be modified.
+	 *
+	 * @return array holding slice characters
+	 */
+	public char[] array() {
+		return array;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if ((index < 0) || (index >= length)) {
+			throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+		}
+
+		return array[offset + index];
+	}
+
+	/**
+	 * Compares characters of the slice with the given sequence.
+	 *
+	 * @param chars to compare with
+	 *
+	 * @return <code>true</code> if both contain the same characters
+	 */
+	public boolean contentEquals(CharSequence chars) {
+		if (chars.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (array[offset + i] != chars.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns index of the first slice character in the <code>array()</code>.
+	 *
+	 * @return offset of the slice
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if ((start < 0) || (end > length) || (start > end)) {
+			throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: "
+					+ length);
+		}
+
+		return new String(array, offset + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(array, offset, length);
+	}
+
+	void set(char[] array, int offset, int length) {
+		this.array  = array;
+		this.offset = offset;
+		this.length = length;
+	}
+}    // CharSlice
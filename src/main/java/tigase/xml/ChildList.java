@@ -0,0 +1,224 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>ChildList</code> - compact, array based list of element child nodes.
+ * Array is allocated on the first insertion and is sized exactly for a
+ * single child, which is the most common case for stanzas, and then grows as
+ * needed.
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+class ChildList
+				extends AbstractList<XMLNodeIfc>
+				implements RandomAccess, Cloneable {
+	private static final XMLNodeIfc[] EMPTY = new XMLNodeIfc[0];
+
+	//~--- fields ---------------------------------------------------------------
+
+	private XMLNodeIfc[] nodes = EMPTY;
+	private int size = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new empty <code>ChildList</code>, no array is allocated until
+	 * the first child is added.
+	 */
+	ChildList() {}
+
+	/**
+	 * Creates a new <code>ChildList</code> with room for the given number of
+	 * children.
+	 */
+	ChildList(int capacity) {
+		if (capacity > 0) {
+			nodes = new XMLNodeIfc[capacity];
+		}
+	}
+
+	/**
+	 * Creates a new <code>ChildList</code> containing clones of the given
+	 * nodes.
+	 */
+	ChildList(Collection<? extends XMLNodeIfc> children) {
+		this(children.size());
+		for (XMLNodeIfc child : children) {
+			add(child.clone());
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	@Override
+	public boolean add(XMLNodeIfc node) {
+		if (size == nodes.length) {
+			grow();
+		}
+		nodes[size++] = node;
+		++modCount;
+
+		return true;
+	}
+
+	@Override
+	public void add(int index, XMLNodeIfc node) {
+		if ((index < 0) || (index > size)) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+		if (size == nodes.length) {
+			grow();
+		}
+		System.arraycopy(nodes, index, nodes, index + 1, size - index);
+		nodes[index] = node;
+		++size;
+		++modCount;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(nodes, 0, size, null);
+		size = 0;
+		++modCount;
+	}
+
+	@Override
+	public Object clone() {
+		ChildList result;
+
+		try {
+			result = (ChildList) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError();
+		}
+		result.nodes = (size == 0)
+				? EMPTY
+				: Arrays.copyOf(nodes, size);
+		result.modCount = 0;
+
+		return result;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	@Override
+	public void forEach(Consumer<? super XMLNodeIfc> action) {
+		int expected = modCount;
+
+		for (int i = 0; (i < size) && (modCount == expected); i++) {
+			action.accept(nodes[i]);
+		}
+		if (modCount != expected) {
+			throw new ConcurrentModificationException();
+		}
+	}
+
+	@Override
+	public XMLNodeIfc get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+
+		return nodes[index];
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		for (int i = 0; i < size; i++) {
+			if ((o == nodes[i]) || ((o != null) && o.equals(nodes[i]))) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		for (int i = size - 1; i >= 0; i--) {
+			if ((o == nodes[i]) || ((o != null) && o.equals(nodes[i]))) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public XMLNodeIfc remove(int index) {
+		XMLNodeIfc result = get(index);
+
+		System.arraycopy(nodes, index + 1, nodes, index, size - index - 1);
+		nodes[--size] = null;
+		++modCount;
+
+		return result;
+	}
+
+	@Override
+	public XMLNodeIfc set(int index, XMLNodeIfc node) {
+		XMLNodeIfc result = get(index);
+
+		nodes[index] = node;
+
+		return result;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return Arrays.copyOf(nodes, size, Object[].class);
+	}
+
+	private void grow() {
+		int length = nodes.length;
+
+		// Second child usually means there are a few more of them
+		nodes = Arrays.copyOf(nodes, (length == 0)
+				? 1
+				: ((length == 1)
+					? 4
+					: length + (length >> 1)));
+	}
+}    // ChildList
@@ -0,0 +1,276 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>DescendantSpliterator</code> - spliterator over all descendant
+ * elements of an element in document order.
+ * <p>
+ * Spliterator created for parallel processing knows the size of every subtree,
+ * counted once in document order, and splits a range of siblings where half
+ * of the elements of their subtrees is reached. A single large subtree is
+ * split into its root and the range of its children, so trees with one big
+ * branch, like <em>XMLDB</em> files, are split as well. Sequential
+ * spliterator does not count sizes and does not split.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+class DescendantSpliterator
+				implements Spliterator<Element> {
+	/** Element emitted before the range, without its subtree */
+	private Element head = null;
+	private int depth = 0;
+	private int[] fences = new int[8];
+	private int[] indexes = new int[8];
+	private Element[] parents = new Element[8];
+
+	/** Position in document order of the next element and of the end */
+	private int pre;
+	private final int pre_end;
+
+	/**
+	 * Sizes of subtrees by position of their root in document order,
+	 * <code>null</code> for sequential spliterator
+	 */
+	private final int[] sizes;
+
+	//~--- constructors ---------------------------------------------------------
+
+	private DescendantSpliterator(int[] sizes, Element parent, int index, int fence, int pre,
+			int pre_end) {
+		this.sizes   = sizes;
+		this.pre     = pre;
+		this.pre_end = pre_end;
+		if (index < fence) {
+			push(parent, index, fence);
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Creates spliterator over descendants of the given element which does not
+	 * split.
+	 */
+	static DescendantSpliterator sequential(Element root) {
+		return new DescendantSpliterator(null, root, 0, (root.children == null)
+				? 0
+				: root.children.size(), 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates spliterator over descendants of the given element for parallel
+	 * processing. The whole tree is walked to count sizes of subtrees, unparsed
+	 * content is processed at this time, so later the tree is only read.
+	 */
+	static DescendantSpliterator parallel(Element root) {
+		SizeCounter counter = new SizeCounter();
+
+		root.accept(counter);
+
+		return new DescendantSpliterator(counter.sizes, root, 0, (root.children == null)
+				? 0
+				: root.children.size(), 1, counter.sizes[0]);
+	}
+
+	@Override
+	public int characteristics() {
+		return (sizes == null)
+				? ORDERED | NONNULL
+				: ORDERED | NONNULL | SIZED | SUBSIZED;
+	}
+
+	@Override
+	public long estimateSize() {
+		return (sizes == null)
+				? Long.MAX_VALUE
+				: pre_end - pre;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Element> action) {
+		while (tryAdvance(action)) {}
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Element> action) {
+		if (head != null) {
+			Element elem = head;
+
+			head = null;
+			++pre;
+			action.accept(elem);
+
+			return true;
+		}
+		while (depth > 0) {
+			int top = depth - 1;
+
+			if (indexes[top] < fences[top]) {
+				XMLNodeIfc node = parents[top].children.get(indexes[top]++);
+
+				if (node instanceof Element) {
+					Element elem = (Element) node;
+
+					List<XMLNodeIfc> children = elem.children;
+
+					if ((children != null) && !children.isEmpty()) {
+						push(elem, 0, children.size());
+					}
+					++pre;
+					action.accept(elem);
+
+					return true;
+				}
+			} else {
+				parents[--depth] = null;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public Spliterator<Element> trySplit() {
+
+		// Only a range of siblings which has not been started can be split
+		if ((sizes == null) || (depth != 1) || (head != null)) {
+			return null;
+		}
+
+		Element          parent   = parents[0];
+		List<XMLNodeIfc> children = parent.children;
+		int              half     = (pre_end - pre) / 2;
+		int              last     = -1;
+		int              last_pre = pre;
+		int              p        = pre;
+
+		for (int i = indexes[0]; i < fences[0]; i++) {
+			if (children.get(i) instanceof Element) {
+				if ((last >= 0) && (p - pre >= half)) {
+					return splitAt(i, p);
+				}
+				last     = i;
+				last_pre = p;
+				p        += sizes[p];
+			}
+		}
+		if (last < 0) {
+			return null;
+		}
+		if (last_pre > pre) {
+
+			// The last subtree has more than half of elements
+			return splitAt(last, last_pre);
+		}
+		if (sizes[pre] == 1) {
+			return null;
+		}
+
+		// The only subtree is split into its root and the range of its children
+		Element               root   = (Element) children.get(last);
+		DescendantSpliterator result = new DescendantSpliterator(sizes, null, 0, 0, pre, pre + 1);
+
+		result.head = root;
+		parents[0]  = root;
+		indexes[0]  = 0;
+		fences[0]   = root.children.size();
+		++pre;
+
+		return result;
+	}
+
+	/**
+	 * Splits range of siblings before the given child, whose subtree starts at
+	 * the given position in document order.
+	 */
+	private DescendantSpliterator splitAt(int index, int index_pre) {
+		DescendantSpliterator result = new DescendantSpliterator(sizes, parents[0], indexes[0], index,
+				pre, index_pre);
+
+		indexes[0] = index;
+		pre        = index_pre;
+
+		return result;
+	}
+
+	private void push(Element parent, int index, int fence) {
+		if (depth == parents.length) {
+			parents = Arrays.copyOf(parents, depth * 2);
+			indexes = Arrays.copyOf(indexes, depth * 2);
+			fences  = Arrays.copyOf(fences, depth * 2);
+		}
+		parents[depth] = parent;
+		indexes[depth] = index;
+		fences[depth]  = fence;
+		++depth;
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Counts sizes of all subtrees, including their roots, in document order.
+	 */
+	private static class SizeCounter
+					implements ElementVisitor {
+		private int count = 0;
+		private int[] sizes = new int[64];
+		private int[] stack = new int[8];
+		private int depth = 0;
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean enter(Element element) {
+			if (count == sizes.length) {
+				sizes = Arrays.copyOf(sizes, count * 2);
+			}
+			if (depth == stack.length) {
+				stack = Arrays.copyOf(stack, depth * 2);
+			}
+			stack[depth++] = count++;
+
+			return true;
+		}
+
+		@Override
+		public void leave(Element element) {
+			int idx = stack[--depth];
+
+			sizes[idx] = count - idx;
+		}
+	}
+}    // DescendantSpliterator
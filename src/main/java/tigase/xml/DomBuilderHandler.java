@@ -22,13 +22,14 @@
 
 package tigase.xml;
 
-import java.util.EmptyStackException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Stack;
-import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,7 +54,7 @@ import java.util.logging.Logger;
  * @version $Rev$
  */
 
-public class DomBuilderHandler implements SimpleHandler {
+public class DomBuilderHandler implements SimpleSkipHandler {
 
   private static Logger log =
     Logger.getLogger("tigase.xml.DomBuilderHandler");
@@ -66,8 +67,21 @@ public class DomBuilderHandler implements SimpleHandler {
   private String top_xmlns = null;
 
   private LinkedList<Element> all_roots = new LinkedList<Element>();
+	private Consumer<Element> rootConsumer = all_roots::offer;
   private Stack<Element> el_stack = new Stack<Element>();
-	private Map<String, String> namespaces = new TreeMap<String, String>();
+
+	/** Namespace prefixes in scope of the current element */
+	private Map<String, String> namespaces = new HashMap<String, String>();
+	private Map<String, String> namespaces_snapshot = null;
+
+	/** Declarations of open elements with bindings they shadow, innermost last */
+	private String[] ns_prefixes = new String[4];
+	private String[] ns_previous = new String[4];
+	private int[] ns_depths = new int[4];
+	private int ns_count = 0;
+	private SymbolTable symbols = SymbolTable.getDefault();
+	private boolean lazyChildren = false;
+	private boolean streamMode = false;
 
   public DomBuilderHandler(ElementFactory factory) {
     customFactory = factory;
@@ -77,6 +91,119 @@ public class DomBuilderHandler implements SimpleHandler {
     customFactory = defaultFactory;
   }
 
+	/**
+	 * Creates a new <code>DomBuilderHandler</code> resolving element and
+	 * attribute names using the given symbol table instead of the default one.
+	 */
+	public DomBuilderHandler(ElementFactory factory, SymbolTable symbols) {
+		customFactory = factory;
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Creates a new <code>DomBuilderHandler</code> which, if
+	 * <code>lazyChildren</code> is set, keeps content of top level elements as
+	 * raw text and parses it only when children of the element are accessed.
+	 * Unparsed content is serialized as it was received, without
+	 * normalization, so such elements must not be compared by
+	 * <code>toString()</code>.
+	 * Lazy children are always created by the default element list, so
+	 * element classes accessing <code>children</code> field directly should
+	 * not be used in this mode.
+	 */
+	public DomBuilderHandler(ElementFactory factory, SymbolTable symbols, boolean lazyChildren) {
+		this(factory, symbols);
+		this.lazyChildren = lazyChildren;
+	}
+
+	/**
+	 * Creates a new <code>DomBuilderHandler</code> passing each parsed
+	 * <em>XML</em> tree to the given consumer as soon as its root element is
+	 * closed, instead of collecting them in the queue returned by
+	 * <code>getParsedElements()</code>. The consumer is called from within
+	 * <code>parse()</code> so it should not block.
+	 */
+	public DomBuilderHandler(ElementFactory factory, Consumer<Element> rootConsumer) {
+		this(factory, SymbolTable.getDefault(), false, rootConsumer);
+	}
+
+	/**
+	 * Creates a new <code>DomBuilderHandler</code> with all options, see
+	 * other constructors for their description.
+	 */
+	public DomBuilderHandler(ElementFactory factory, SymbolTable symbols, boolean lazyChildren,
+			Consumer<Element> rootConsumer) {
+		this(factory, symbols, lazyChildren);
+		this.rootConsumer = rootConsumer;
+	}
+
+	/**
+	 * Creates a new <code>DomBuilderHandler</code> which, if
+	 * <code>streamMode</code> is set, treats top level element as a long lived
+	 * <em>XMPP</em> stream. The stream element is passed on as soon as it is
+	 * opened and each of its children is passed on as a separate tree once it
+	 * is closed, nothing is attached to the stream element and its character
+	 * data is ignored. Element with the same name opened directly inside the
+	 * stream element restarts the stream and is passed on in the same way.
+	 * Stream children without own namespace get the default namespace declared
+	 * on the stream element.
+	 * Closed stream element is passed on once again, at that time
+	 * <code>isStreamOpened()</code> returns <code>false</code>. In lazy mode
+	 * content of the stream children is kept unparsed.
+	 */
+	public DomBuilderHandler(ElementFactory factory, SymbolTable symbols, boolean lazyChildren,
+			boolean streamMode, Consumer<Element> rootConsumer) {
+		this(factory, symbols, lazyChildren, rootConsumer);
+		this.streamMode = streamMode;
+		if (streamMode) {
+			SimpleParser.ParserState state = new SimpleParser.ParserState();
+
+			// White characters between stanzas are keep-alives
+			state.keepalive_depth = 1;
+			parserState = state;
+		}
+	}
+
+	/**
+	 * Creates handler parsing lazy content of the given element.
+	 */
+	DomBuilderHandler(ElementFactory factory, SymbolTable symbols, Element parent,
+			Map<String, String> namespaces) {
+		this(factory, symbols);
+		this.namespaces.putAll(namespaces);
+		el_stack.push(parent);
+
+		SimpleParser.ParserState state = new SimpleParser.ParserState();
+
+		// Content is parsed at the depth of the element, like in the original
+		// document, so white characters in it are not taken for keep-alives
+		state.state = SimpleParser.State.ELEMENT_CDATA;
+		state.depth = 1;
+		parserState = state;
+	}
+
+	/**
+	 * Returns <code>true</code> if handler works in stream mode and the stream
+	 * element is opened.
+	 */
+	public boolean isStreamOpened() {
+		return streamMode && !el_stack.isEmpty();
+	}
+
+	/**
+	 * Returns number of keep-alives, white characters found outside of
+	 * elements or between stanzas in stream mode, received so far.
+	 */
+	public long getKeepAliveCount() {
+		return (parserState instanceof SimpleParser.ParserState)
+				? ((SimpleParser.ParserState) parserState).keepalives
+				: 0;
+	}
+
+	/**
+	 * Returns parsed <em>XML</em> trees not retrieved yet. The queue is always
+	 * empty if handler was created with a root consumer.
+	 */
   public Queue<Element> getParsedElements() {
     return all_roots;
   }
@@ -107,35 +234,44 @@ public class DomBuilderHandler implements SimpleHandler {
 			for (int i = 0; i < attr_names.length; ++i) {
 				// Exit the loop as soon as we reach end of attributes set
 				if (attr_names[i] == null) { break;	}
-				if (attr_names[i].toString().startsWith("xmlns:")) {
-					namespaces.put(attr_names[i].substring("xmlns:".length(),
-							attr_names[i].length()),
-						attr_values[i].toString());
+				if (startsWith(attr_names[i], "xmlns:")) {
+					declareNamespace(symbols.intern(attr_names[i], "xmlns:".length(), attr_names[i].length()),
+							symbols.intern(attr_values[i], 0, attr_values[i].length()), el_stack.size());
 				} // end of if (att_name.startsWith("xmlns:"))
 			} // end of for (String att_name : attnames)
 		} // end of if (attr_names != null)
 
-    String tmp_name = name.toString();
 		String new_xmlns = null;
-		String prefix = null;
-		String tmp_name_prefix = null;
-		int idx = tmp_name.indexOf(':');
-		if (idx > 0) {
-			tmp_name_prefix = tmp_name.substring(0, idx);
+		String prefix = findPrefix(name);
+		int start = 0;
+		if (prefix != null) {
+			new_xmlns = namespaces.get(prefix);
+			start = prefix.length() + 1;
 		}
-		if (tmp_name_prefix != null) {
-			for (String pref : namespaces.keySet()) {
-				if (tmp_name_prefix.equals(pref)) {
-					new_xmlns = namespaces.get(pref);
-					tmp_name = tmp_name.substring(pref.length() + 1, tmp_name.length());
-					prefix = pref;
-				} // end of if (tmp_name.startsWith(xmlns))
-			} // end of for (String xmlns: namespaces.keys())
+		String tmp_name = symbols.intern(name, start, name.length());
+		if (streamMode && (el_stack.size() == 1) && (el_stack.peek().getName() == tmp_name)) {
+			// Stream restart, declarations of the new stream element replace old ones
+			el_stack.pop();
+			if (parserState instanceof SimpleParser.ParserState) {
+				// Parser sees the new stream element at depth of the old one
+				((SimpleParser.ParserState) parserState).depth = 0;
+			}
+			for (int i = ns_count - 1; (i >= 0) && (ns_depths[i] == 1); i--) {
+				ns_depths[i] = 0;
+			}
 		}
     Element elem = newElement(tmp_name, null, attr_names, attr_values);
     String ns = elem.getXMLNS();
+		if (streamMode && el_stack.isEmpty()) {
+			top_xmlns = ns;
+		}
     if (ns == null) {
-			if (el_stack.isEmpty() || el_stack.peek().getXMLNS() == null) {
+			if (streamMode && (el_stack.size() == 1)) {
+				// Stanzas use default namespace of the stream, not its own one
+				if (top_xmlns != null) {
+					elem.setDefXMLNS(top_xmlns);
+				}
+			} else if (el_stack.isEmpty() || el_stack.peek().getXMLNS() == null) {
 				//elem.setDefXMLNS(top_xmlns);
 			} else {
 				elem.setDefXMLNS(el_stack.peek().getXMLNS());
@@ -146,6 +282,9 @@ public class DomBuilderHandler implements SimpleHandler {
 			elem.removeAttribute("xmlns:" + prefix);
 		}
     el_stack.push(elem);
+		if (streamMode && (el_stack.size() == 1)) {
+			rootConsumer.accept(elem);
+		}
   }
 
   public void elementCData(StringBuilder cdata) {
@@ -153,12 +292,12 @@ public class DomBuilderHandler implements SimpleHandler {
 			log.finest("Element CDATA: " + cdata);
 		}
 		//System.out.println("Element CDATA: "+cdata);
-		try {
-			el_stack.peek().addCData(cdata.toString());
-		} catch (EmptyStackException e) {
-			// Do nothing here, it happens sometimes that client sends
-			// some white characters after sending open stream data....
+		// Character data outside of elements or between stanzas is ignored,
+		// keep-alives are already dropped by the parser
+		if (el_stack.isEmpty() || (streamMode && (el_stack.size() == 1))) {
+			return;
 		}
+		el_stack.peek().addCData(cdata.toString());
   }
 
   public boolean endElement(StringBuilder name) {
@@ -167,35 +306,27 @@ public class DomBuilderHandler implements SimpleHandler {
 		}
     //System.out.println("End element name: "+name);
 
-	String tmp_name = name.toString();
-	String tmp_name_prefix = null;
-	int idx = tmp_name.indexOf(':');
-	if (idx > 0) {
-	 tmp_name_prefix = tmp_name.substring(0, idx);
-	}
-	if (tmp_name_prefix != null) {
-	  for (String pref : namespaces.keySet()) {
-		if (tmp_name_prefix.equals(pref)) {
-		  tmp_name = tmp_name.substring(pref.length() + 1, tmp_name.length());
-	    } // end of if (tmp_name.startsWith(xmlns))
-	  } // end of for (String xmlns: namespaces.keys())
-	}
-
+	String prefix = findPrefix(name);
+	String tmp_name = symbols.intern(name, (prefix != null) ? prefix.length() + 1 : 0,
+			name.length());
 
     if (el_stack.isEmpty()) {
       el_stack.push(newElement(tmp_name, null, null, null));
     } // end of if (tmp_name.equals())
 
     Element elem = el_stack.pop();
-	if (elem.getName() != tmp_name.intern())
+		undeclareNamespaces(el_stack.size());
+	if (elem.getName() != tmp_name)
 		return false;
     if (el_stack.isEmpty()) {
-      all_roots.offer(elem);
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Adding new request: " + elem.toString());
 			}
+			rootConsumer.accept(elem);
     } // end of if (el_stack.isEmpty())
-    else {
+    else if (streamMode && (el_stack.size() == 1)) {
+			rootConsumer.accept(elem);
+		} else {
       el_stack.peek().addChild(elem);
     } // end of if (el_stack.isEmpty()) else
 	return true;
@@ -216,4 +347,91 @@ public class DomBuilderHandler implements SimpleHandler {
     return parserState;
   }
 
+	@Override
+	public Directive contentDirective() {
+		return (lazyChildren && (el_stack.size() == (streamMode ? 2 : 1)))
+				? Directive.CAPTURE
+				: Directive.PARSE;
+	}
+
+	@Override
+	public void skippedContent(long length, CharSlice content) {
+		if ((content != null) && (content.length() > 0)) {
+			Element elem = el_stack.peek();
+			char[] source = new char[content.length()];
+
+			System.arraycopy(content.array(), content.offset(), source, 0, source.length);
+			if (namespaces_snapshot == null) {
+				namespaces_snapshot = namespaces.isEmpty()
+						? Collections.<String, String>emptyMap()
+						: Collections.unmodifiableMap(new HashMap<String, String>(namespaces));
+			}
+			elem.children = new LazyChildList(elem, source, customFactory, symbols, namespaces_snapshot);
+		}
+	}
+
+	/**
+	 * Binds the prefix to the namespace until the end of element at the given
+	 * depth.
+	 */
+	private void declareNamespace(String prefix, String xmlns, int depth) {
+		if (ns_count == ns_prefixes.length) {
+			ns_prefixes = Arrays.copyOf(ns_prefixes, ns_count * 2);
+			ns_previous = Arrays.copyOf(ns_previous, ns_count * 2);
+			ns_depths = Arrays.copyOf(ns_depths, ns_count * 2);
+		}
+		ns_prefixes[ns_count] = prefix;
+		ns_previous[ns_count] = namespaces.put(prefix, xmlns);
+		ns_depths[ns_count++] = depth;
+		namespaces_snapshot = null;
+	}
+
+	/**
+	 * Removes bindings declared by elements at the given or bigger depth,
+	 * restoring bindings shadowed by them.
+	 */
+	private void undeclareNamespaces(int depth) {
+		while ((ns_count > 0) && (ns_depths[ns_count - 1] >= depth)) {
+			--ns_count;
+			if (ns_previous[ns_count] == null) {
+				namespaces.remove(ns_prefixes[ns_count]);
+			} else {
+				namespaces.put(ns_prefixes[ns_count], ns_previous[ns_count]);
+			}
+			ns_prefixes[ns_count] = null;
+			ns_previous[ns_count] = null;
+			namespaces_snapshot = null;
+		}
+	}
+
+	/**
+	 * Returns namespace prefix in scope of the current element which the given
+	 * element name starts with.
+	 */
+	private String findPrefix(StringBuilder name) {
+		if (namespaces.isEmpty()) {
+			return null;
+		}
+		int idx = name.indexOf(":");
+		if (idx > 0) {
+			String prefix = symbols.intern(name, 0, idx);
+			if (namespaces.containsKey(prefix)) {
+				return prefix;
+			}
+		}
+		return null;
+	}
+
+	private static boolean startsWith(StringBuilder str, String prefix) {
+		if (str.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (str.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }// DomBuilderHandler
@@ -31,17 +31,33 @@ import tigase.annotations.TODO;
 //~--- JDK imports ------------------------------------------------------------
 
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //import java.util.StringTokenizer;
 
@@ -73,11 +89,13 @@ import java.util.function.Function;
 @TODO(note = "Make it a bit lighter.")
 public class Element
 				implements XMLNodeIfc<Element> {
+	private static final SymbolTable symbols = SymbolTable.getDefault();
+
 	/** Field description */
 	protected XMLIdentityHashMap<String, String> attributes = null;
 
 	/** Field description */
-	protected LinkedList<XMLNodeIfc> children = null;
+	protected List<XMLNodeIfc> children = null;
 
 	// protected String cdata = null;
 
@@ -90,6 +108,25 @@ public class Element
 	/** Field description */
 	protected String xmlns = null;
 
+	/** Element this one has been added to as a child */
+	private Element parent = null;
+
+	/** Attributes map is shared with clones and must be copied before change */
+	private boolean sharedAttributes = false;
+
+	private boolean cacheSerialized = false;
+
+	/**
+	 * Element has been added as a child to more than one element, its changes
+	 * invalidate only the last one, so its ancestors do not cache serialized
+	 * form
+	 */
+	private boolean manyParents = false;
+	private String serialized = null;
+
+	/** Cached result of <code>hashCode()</code>, 0 when not computed yet */
+	private int hash = 0;
+
 	public Element(Element element) {
 		Element src = element.clone();
 
@@ -99,7 +136,11 @@ public class Element
 		// this.cdata = src.cdata;
 		this.defxmlns = src.defxmlns;
 		this.xmlns    = src.xmlns;
-		this.children = src.children;
+		this.children = (src.children instanceof LazyChildList)
+				? ((LazyChildList) src.children).copyFor(this)
+				: src.children;
+		this.sharedAttributes = src.sharedAttributes;
+		adoptChildren();
 	}
 
 	public Element(String argName) {
@@ -181,12 +222,14 @@ public class Element
 	}
 
 	public void addAttributes(Map<String, String> attrs) {
+		ensureOwnAttributes();
 		if (attributes == null) {
 			attributes = new XMLIdentityHashMap<String, String>(attrs.size());
 		}
 		for (Map.Entry<String, String> entry : attrs.entrySet()) {
-			attributes.put(entry.getKey().intern(), entry.getValue());
+			attributes.put(symbols.intern(entry.getKey()), entry.getValue());
 		}
+		invalidate();
 	}
 
 	public void addCData(String argCData) {
@@ -198,9 +241,19 @@ public class Element
 			throw new NullPointerException("Element child can not be null.");
 		}
 		if (children == null) {
-			children = new LinkedList<XMLNodeIfc>();
+			children = new ChildList();
 		}    // end of if (children == null)
 		children.add(child);
+		if (child instanceof Element) {
+			Element elem = (Element) child;
+
+			if ((elem.parent != null) && (elem.parent != this)) {
+				elem.parent.invalidate();
+				elem.manyParents = true;
+			}
+			elem.parent = this;
+		}
+		invalidate();
 
 		// Collections.sort(children);
 	}
@@ -210,11 +263,15 @@ public class Element
 			return;
 		}    // end of if (children == null)
 		if (this.children == null) {
-			this.children = new LinkedList<XMLNodeIfc>();
+			this.children = new ChildList(children.size());
 		}    // end of if (children == null)
-		for (XMLNodeIfc child : children) {
-			this.children.add(child.clone());
+		for (Element child : children) {
+			Element copy = child.clone();
+
+			copy.parent = this;
+			this.children.add(copy);
 		}    // end of for (Element child: children)
+		invalidate();
 
 		// this.children.addAll(children);
 		// Collections.sort(children);
@@ -230,6 +287,10 @@ public class Element
 	}
 	
 	public void childrenToString(StringBuilder result) {
+		if ((children instanceof LazyChildList)
+				&& ((LazyChildList) children).appendSource(result)) {
+			return;
+		}
 		if (children != null) {
 			for (XMLNodeIfc child : children) {
 
@@ -249,11 +310,18 @@ public class Element
 		StringBuilder result = new StringBuilder();
 
 		if (children != null) {
+			PrettySerializer serializer = null;
+
 			for (XMLNodeIfc child : children) {
 
 					// This is weird but if there is a bug in some other component
 				// it may add null children to the element, let's be save here.
-				if (child != null) {
+				if (child instanceof Element) {
+					if (serializer == null) {
+						serializer = new PrettySerializer(result);
+					}
+					walk((Element) child, serializer);
+				} else if (child != null) {
 					result.append(child.toStringPretty());
 				}
 			}    // end of for ()
@@ -289,9 +357,60 @@ public class Element
 		}        // end of if (child != null)
 	}	
 	
-	@SuppressWarnings({ "unchecked" })
+	/**
+	 * Creates a deep copy of the element. Attributes are shared with the copy
+	 * until either element changes them, child nodes are always copied. Children
+	 * are copied without recursion, so deep trees do not grow the call stack.
+	 */
 	@Override
 	public Element clone() {
+		Element   result = copyNode();
+		Element[] stack  = null;
+		int       depth  = 0;
+		Element   src    = this;
+		Element   dst    = result;
+
+		while (true) {
+			List<XMLNodeIfc> nodes = src.children;
+
+			if ((dst.children == null) && (nodes != null)) {
+				ChildList list = new ChildList(nodes.size());
+
+				for (XMLNodeIfc node : nodes) {
+					if (node instanceof Element) {
+						Element copy = ((Element) node).copyNode();
+
+						copy.parent = dst;
+						list.add(copy);
+						if (stack == null) {
+							stack = new Element[16];
+						} else if (depth == stack.length) {
+							stack = Arrays.copyOf(stack, depth * 2);
+						}
+						stack[depth++] = (Element) node;
+						stack[depth++] = copy;
+					} else {
+						list.add(node.clone());
+					}
+				}
+				dst.children = list;
+			}
+			if (depth == 0) {
+				return result;
+			}
+			dst = stack[--depth];
+			src = stack[--depth];
+			stack[depth]     = null;
+			stack[depth + 1] = null;
+		}
+	}
+
+	/**
+	 * Creates a copy of the element without children. Unparsed content is
+	 * shared by the copy, otherwise <code>children</code> of the copy is
+	 * <code>null</code> and has to be set by the caller.
+	 */
+	private Element copyNode() {
 		Element result = null;
 
 		try {
@@ -299,34 +418,146 @@ public class Element
 		} catch (CloneNotSupportedException e) {
 			throw new InternalError();
 		}    // end of try-catch
+
+		// Copy is not a child of any element, cached serialized form stays valid
+		result.parent      = null;
+		result.manyParents = false;
+		result.children    = (children instanceof LazyChildList)
+				? ((LazyChildList) children).copyFor(result)
+				: null;
+
+		// Attributes are shared until either element changes them
 		if (attributes != null) {
-			result.attributes = (XMLIdentityHashMap<String, String>) attributes.clone();
-		} else {
-			result.attributes = null;
-		}    // end of else
-		if (children != null) {
-			result.setChildren(children);
-		} else {
-			result.children = null;
-		}    // end of else
+			sharedAttributes        = true;
+			result.sharedAttributes = true;
+		}
+		result.serialized = serialized;
 
 		return result;
 	}
 
+	/**
+	 * Compares elements by their <code>toStringNoChildren()</code> form with
+	 * attributes sorted by name, the result is the same as comparing such
+	 * strings but they are not built. Like <code>equals()</code> it does not
+	 * depend on the order in which attributes were set, so it returns
+	 * <code>0</code> exactly when <code>equals()</code> returns
+	 * <code>true</code>.
+	 */
 	@Override
 	public int compareTo(Element elem) {
-		return toStringNoChildren().compareTo(elem.toStringNoChildren());
+		if (this == elem) {
+			return 0;
+		}
+
+		String[] parts       = noChildrenParts();
+		String[] elem_parts  = elem.noChildrenParts();
+		int      length      = 0;
+		int      elem_length = 0;
+		int      i           = 0;
+		int      pos         = 0;
+		int      j           = 0;
+		int      elem_pos    = 0;
+
+		while (true) {
+			while ((i < parts.length) && (pos == parts[i].length())) {
+				length += pos;
+				pos    = 0;
+				++i;
+			}
+			while ((j < elem_parts.length) && (elem_pos == elem_parts[j].length())) {
+				elem_length += elem_pos;
+				elem_pos    = 0;
+				++j;
+			}
+			if ((i == parts.length) || (j == elem_parts.length)) {
+				break;
+			}
+
+			char c      = parts[i].charAt(pos++);
+			char elem_c = elem_parts[j].charAt(elem_pos++);
+
+			if (c != elem_c) {
+				return c - elem_c;
+			}
+		}
+
+		// One of forms is a prefix of the other one, the shorter one is first
+		for (; i < parts.length; i++) {
+			length += parts[i].length();
+		}
+		for (; j < elem_parts.length; j++) {
+			elem_length += elem_parts[j].length();
+		}
+
+		int result = length - elem_length;
+
+		if (result != 0) {
+			return result;
+		}
+
+		// The same form may be built of different parts only if names or values
+		// contain markup characters
+		for (int k = 0; (k < parts.length) && (k < elem_parts.length); k++) {
+			result = parts[k].compareTo(elem_parts[k]);
+			if (result != 0) {
+				return result;
+			}
+		}
+
+		return parts.length - elem_parts.length;
 	}
 
+	/**
+	 * Elements are equal if they have the same name, attributes (including
+	 * <code>xmlns</code>) and character data. Children elements are not
+	 * compared, use <code>equalsDeep()</code> for that.
+	 */
 	@Override
 	public boolean equals(Object obj) {
-		if (obj instanceof Element) {
-			Element elem = (Element) obj;
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Element)) {
+			return false;
+		}
+
+		Element elem = (Element) obj;
 
-			return toStringNoChildren().equals(elem.toStringNoChildren());
+		if ((hash != 0) && (elem.hash != 0) && (hash != elem.hash)) {
+			return false;
 		}
 
-		return false;
+		return name.equals(elem.name) && attributesEqual(elem) && Objects.equals(cdataKey(),
+				elem.cdataKey());
+	}
+
+	/**
+	 * Compares elements like <code>equals()</code> and then compares all
+	 * children elements recursively, in order.
+	 *
+	 * @param elem element to compare with
+	 *
+	 * @return <code>true</code> if both element trees are equal
+	 */
+	public boolean equalsDeep(Element elem) {
+		if (this == elem) {
+			return true;
+		}
+		if ((elem == null) || !equals(elem)) {
+			return false;
+		}
+
+		Iterator<Element> it      = new ChildElementsIterator(children);
+		Iterator<Element> elem_it = new ChildElementsIterator(elem.children);
+
+		while (it.hasNext() && elem_it.hasNext()) {
+			if (!it.next().equalsDeep(elem_it.next())) {
+				return false;
+			}
+		}
+
+		return !it.hasNext() && !elem_it.hasNext();
 	}
 
 	public Element findChildStaticStr(String[] elementPath) {
@@ -347,17 +578,18 @@ public class Element
 	}
 
 	public Element findChild(String[] elemPath) {
-		if (elemPath[0].isEmpty()) {
-			elemPath = Arrays.copyOfRange(elemPath, 1, elemPath.length);
-		}
-		if (!elemPath[0].equals(getName())) {
+
+		// path may start with empty name if it was created from "/message/body"
+		int start = (elemPath[0].isEmpty()) ? 1 : 0;
+
+		if ((start >= elemPath.length) || !elemPath[start].equals(getName())) {
 			return null;
 		}
 
 		Element child = this;
 
-		// we must start with 1 not 0 as 0 is name of parent element
-		for (int i = 1; (i < elemPath.length) && (child != null); i++) {
+		// we must start after the name of parent element
+		for (int i = start + 1; (i < elemPath.length) && (child != null); i++) {
 			String str = elemPath[i];
 
 			child = child.getChild(str);
@@ -376,6 +608,17 @@ public class Element
 		return findChild(elementPath.split("/"));
 	}
 
+	/**
+	 * Finds child in subtree using precompiled path.
+	 *
+	 * @param path compiled path, its first name must match this element name
+	 *
+	 * @return found element or <code>null</code>
+	 */
+	public Element findChild(ElementPath path) {
+		return path.find(this);
+	}
+
 	public Element findChild(Matcher<Element> matcher) {
 		if (children != null) {
 			for (XMLNodeIfc node : children) {
@@ -395,7 +638,7 @@ public class Element
 	
 	public List<Element> findChildren(Matcher<Element> matcher) {
 		if (children != null) {
-			LinkedList<Element> result = new LinkedList<Element>();
+			ArrayList<Element> result = new ArrayList<Element>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -416,7 +659,7 @@ public class Element
 	
 	public <R> List<R> flatMapChildren(Function<Element, Collection<? extends R>> mapper) {
 		if (children != null) {
-			LinkedList<R> result = new LinkedList<R>();
+			ArrayList<R> result = new ArrayList<R>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -451,7 +694,7 @@ public class Element
 	@Deprecated
 	public String getAttribute(String attName) {
 		if (attributes != null) {
-			return attributes.get(attName.intern());
+			return attributes.get(symbols.intern(attName));
 		}    // end of if (attributes != null)
 
 		return null;
@@ -518,6 +761,22 @@ public class Element
 					 : null;
 	}
 
+	/**
+	 * Returns attribute of element found using precompiled path.
+	 *
+	 * @param path compiled path to the element
+	 * @param att_name interned attribute name
+	 *
+	 * @return attribute value or <code>null</code>
+	 */
+	public String getAttributeStaticStr(ElementPath path, String att_name) {
+		Element child = path.find(this);
+
+		return (child != null)
+					 ? child.getAttributeStaticStr(att_name)
+					 : null;
+	}
+
 	public String getAttributeStaticStr(String[] elementPath, String att_name) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -645,6 +904,21 @@ public class Element
 					 : null;
 	}
 
+	/**
+	 * Returns CData of element found using precompiled path.
+	 *
+	 * @param path compiled path to the element
+	 *
+	 * @return element CData or <code>null</code>
+	 */
+	public String getChildCData(ElementPath path) {
+		Element child = path.find(this);
+
+		return (child != null)
+					 ? child.getCData()
+					 : null;
+	}
+
 	public String getChildCDataStaticStr(String[] elementPath) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -661,9 +935,129 @@ public class Element
 				: null;
 	}	
 
+	/**
+	 * Returns number of child nodes, elements and character data, without
+	 * copying them.
+	 *
+	 * @return number of child nodes
+	 */
+	public int childCount() {
+		return (children != null)
+					 ? children.size()
+					 : 0;
+	}
+
+	/**
+	 * Returns child node at the given position, which is lower than
+	 * <code>childCount()</code>.
+	 *
+	 * @param index of the child node
+	 *
+	 * @return child element or character data
+	 *
+	 * @throws IndexOutOfBoundsException if there is no such child
+	 */
+	public XMLNodeIfc childAt(int index) {
+		if (children == null) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: 0");
+		}
+
+		return children.get(index);
+	}
+
+	/**
+	 * Returns read-only live view of children elements, character data is
+	 * skipped. Unlike <code>getChildren()</code> it does not copy children, so
+	 * it should be used when children are only iterated over. The element must
+	 * not be modified during iteration, returned children, like those from
+	 * <code>childAt()</code>, may be modified.
+	 *
+	 * @return view of children elements
+	 */
+	public Iterable<Element> childElements() {
+		return () -> new ChildElementsIterator(children);
+	}
+
+	/**
+	 * Returns sequential stream of children elements, character data is
+	 * skipped. Children are not copied and the element must not be modified
+	 * while the stream is used.
+	 *
+	 * @return stream of children elements
+	 */
+	public Stream<Element> childElementStream() {
+		return StreamSupport.stream(new ChildElementsSpliterator(children, 0, childCount()), false);
+	}
+
+	/**
+	 * Returns sequential stream of all descendant elements, children,
+	 * their children and so on, in document order.
+	 *
+	 * @return stream of descendant elements
+	 */
+	public Stream<Element> descendantStream() {
+		return StreamSupport.stream(DescendantSpliterator.sequential(this), false);
+	}
+
+	/**
+	 * Returns parallel stream of all descendant elements. Work is split by
+	 * sizes of subtrees, which are counted once when the stream is created, so
+	 * it pays off only for large trees and operations doing some work for each
+	 * element. The stream is ordered, so operations like
+	 * <code>forEachOrdered()</code> or <code>collect()</code> keep document
+	 * order. The tree must not be modified while the stream is used.
+	 *
+	 * @return parallel stream of descendant elements
+	 */
+	public Stream<Element> parallelDescendantStream() {
+		return StreamSupport.stream(DescendantSpliterator.parallel(this), true);
+	}
+
+	/**
+	 * Works as <code>findChildren()</code> but checks children in parallel,
+	 * found children are returned in document order.
+	 *
+	 * @param matcher checking children, it must be thread safe
+	 *
+	 * @return list of matching children or <code>null</code> if the element
+	 * has no children
+	 */
+	public List<Element> parallelFindChildren(Matcher<Element> matcher) {
+		if (children == null) {
+			return null;
+		}
+
+		return childElementStream().parallel().filter(matcher::match).collect(Collectors.toList());
+	}
+
+	/**
+	 * Works as <code>mapChildren()</code> but maps children in parallel,
+	 * results are returned in document order.
+	 *
+	 * @param matcher selecting children to map or <code>null</code> for all
+	 * @param mapper mapping children, it must be thread safe
+	 *
+	 * @return list of results or <code>null</code> if the element has no
+	 * children
+	 */
+	public <R> List<R> parallelMapChildren(Matcher<Element> matcher,
+			Function<Element, ? extends R> mapper) {
+		if (children == null) {
+			return null;
+		}
+
+		Stream<Element> stream = childElementStream().parallel();
+
+		if (matcher != null) {
+			stream = stream.filter(matcher::match);
+		}
+
+		return stream.map(mapper).collect(Collectors.toList());
+	}
+
 	public List<Element> getChildren() {
 		if (children != null) {
-			LinkedList<Element> result = new LinkedList<Element>();
+			ArrayList<Element> result = new ArrayList<Element>(children.size());
 
 			for (XMLNodeIfc node : children) {
 				if (node instanceof Element) {
@@ -697,6 +1091,21 @@ public class Element
 					 : null;
 	}
 
+	/**
+	 * Returns children of element found using precompiled path.
+	 *
+	 * @param path compiled path to the element
+	 *
+	 * @return list of children elements or <code>null</code>
+	 */
+	public List<Element> getChildren(ElementPath path) {
+		Element child = path.find(this);
+
+		return (child != null)
+					 ? child.getChildren()
+					 : null;
+	}
+
 	public List<Element> getChildrenStaticStr(String[] elementPath) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -721,7 +1130,7 @@ public class Element
 		if (xmlns == null) {
 			xmlns = getAttributeStaticStr("xmlns");
 			xmlns = ((xmlns != null)
-							 ? xmlns.intern()
+							 ? symbols.intern(xmlns)
 							 : null);
 		}
 
@@ -750,6 +1159,21 @@ public class Element
 					 : null;
 	}
 
+	/**
+	 * Returns namespace of element found using precompiled path.
+	 *
+	 * @param path compiled path to the element
+	 *
+	 * @return element namespace or <code>null</code>
+	 */
+	public String getXMLNS(ElementPath path) {
+		Element child = path.find(this);
+
+		return (child != null)
+					 ? child.getXMLNS()
+					 : null;
+	}
+
 	public String getXMLNSStaticStr(String[] elementPath) {
 		Element child = findChildStaticStr(elementPath);
 
@@ -760,7 +1184,46 @@ public class Element
 
 	@Override
 	public int hashCode() {
-		return toStringNoChildren().hashCode();
+		int result = hash;
+
+		if (result == 0) {
+			result = name.hashCode();
+			if (attributes != null) {
+				int attrs = 0;
+
+				// Attributes order does not matter for equals(), so it must not for hash
+				for (int i = 0; i < attributes.size; i++) {
+					attrs += attributes.keys[i].hashCode() ^ attributes.values[i].hashCode();
+				}
+				result = 31 * result + attrs;
+			}
+
+			String cdata = cdataKey();
+
+			result = 31 * result + ((cdata == null) ? 0 : cdata.hashCode());
+			if (result == 0) {
+				result = 1;
+			}
+			hash = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Calculates hash code like <code>hashCode()</code> including all children
+	 * elements recursively. The value is not cached.
+	 *
+	 * @return hash code of the whole element tree
+	 */
+	public int hashCodeDeep() {
+		int result = hashCode();
+
+		for (Iterator<Element> it = new ChildElementsIterator(children); it.hasNext(); ) {
+			result = 31 * result + it.next().hashCodeDeep();
+		}
+
+		return result;
 	}
 	
 	public <R> R map(Function<Element, ? extends R> mapper) {
@@ -773,7 +1236,7 @@ public class Element
 
 	public <R> List<R> mapChildren(Matcher<Element> matcher, Function<Element, ? extends R> mapper) {
 		if (children != null) {
-			LinkedList<R> result = new LinkedList<R>();
+			ArrayList<R> result = new ArrayList<R>();
 
 			for (XMLNodeIfc node : children) {
 				if (!(node instanceof Element)) {
@@ -796,8 +1259,10 @@ public class Element
 	}
 
 	public void removeAttribute(String key) {
+		ensureOwnAttributes();
 		if (attributes != null) {
-			attributes.remove(key.intern());
+			attributes.remove(symbols.intern(key));
+			invalidate();
 		}    // end of if (attributes == null)
 	}
 
@@ -805,7 +1270,17 @@ public class Element
 		boolean res = false;
 
 		if (children != null) {
-			res = children.remove(child);
+			int idx = children.indexOf(child);
+
+			if (idx >= 0) {
+				XMLNodeIfc removed = children.remove(idx);
+
+				if ((removed instanceof Element) && (((Element) removed).parent == this)) {
+					((Element) removed).parent = null;
+				}
+				res = true;
+				invalidate();
+			}
 		}    // end of if (children == null)
 
 		return res;
@@ -821,21 +1296,25 @@ public class Element
 	}
 
 	public void setAttribute(String key, String value) {
+		ensureOwnAttributes();
 		if (attributes == null) {
 			attributes = new XMLIdentityHashMap<String, String>(5);
 		}    // end of if (attributes == null)
-			String k = key.intern();
+			String k = symbols.intern(key);
 		String v = value;
 
 		if (k == "xmlns") {
-			xmlns = value.intern();
+			xmlns = symbols.intern(value);
 			v = xmlns;
 		}
 		attributes.put(k, v);
+		invalidate();
 	}
 
 	public void setAttributes(Map<String, String> newAttributes) {
-		attributes = new XMLIdentityHashMap<String, String>(newAttributes.size());
+		attributes       = new XMLIdentityHashMap<String, String>(newAttributes.size());
+		sharedAttributes = false;
+		invalidate();
 		for (Map.Entry<String, String> entry : newAttributes.entrySet()) {
 			setAttribute(entry.getKey(), entry.getValue());
 
@@ -844,10 +1323,18 @@ public class Element
 	}
 
 	public void setAttributes(StringBuilder[] names, StringBuilder[] values) {
-		attributes = new XMLIdentityHashMap<String, String>(names.length);
+		int count = 0;
+
+		// Parser passes arrays which may be longer than the attributes list
+		while ((count < names.length) && (names[count] != null)) {
+			++count;
+		}
+		attributes       = new XMLIdentityHashMap<String, String>(count);
+		sharedAttributes = false;
+		invalidate();
 		for (int i = 0; i < names.length; i++) {
 			if (names[i] != null) {
-				setAttribute(names[i].toString(), values[i].toString());
+				setAttribute(symbols.intern(names[i], 0, names[i].length()), values[i].toString());
 
 				// attributes.put(names[i].toString().intern(), values[i].toString());
 			}    // end of if (names[i] != null)
@@ -855,7 +1342,9 @@ public class Element
 	}
 
 	public void setAttributes(String[] names, String[] values) {
-		attributes = new XMLIdentityHashMap<String, String>(names.length);
+		attributes       = new XMLIdentityHashMap<String, String>(names.length);
+		sharedAttributes = false;
+		invalidate();
 		for (int i = 0; i < names.length; i++) {
 			if (names[i] != null) {
 				setAttribute(names[i], values[i]);
@@ -866,7 +1355,6 @@ public class Element
 	}
 
 	public void setCData(String argCData) {
-
 		if (children != null) {
 			for (XMLNodeIfc child : children) {
 
@@ -874,6 +1362,7 @@ public class Element
 				// it may add null children to the element, let's be save here.
 				if ((child != null) && (child instanceof CData)) {
 					((CData) child).setCdata(argCData);
+					invalidate();
 					return;
 				}
 			}    // end of for ()
@@ -883,20 +1372,35 @@ public class Element
 	}
 
 	public void setChildren(List<XMLNodeIfc> children) {
-		this.children = new LinkedList<XMLNodeIfc>();
-		for (XMLNodeIfc child : children) {
-			this.children.add(child.clone());
-		}    // end of for (Element child: children)
+		this.children = new ChildList(children);
+		adoptChildren();
+		invalidate();
 
 		// Collections.sort(children);
 	}
 
 	public void setDefXMLNS(String ns) {
-		defxmlns = ns.intern();
+		defxmlns = symbols.intern(ns);
 	}
 
 	public void setName(String argName) {
-		this.name = argName.intern();
+		this.name = symbols.intern(argName);
+		invalidate();
+	}
+
+	/**
+	 * Enables caching of serialized form of the element, so repeated
+	 * <code>toString()</code> calls on unchanged element, for example when
+	 * the same stanza is sent to many recipients, cost a single copy. Cache is
+	 * dropped whenever the element or any of its descendants is modified using
+	 * element methods. It is kept by clones of the element. Form is not cached
+	 * if any descendant has been added as a child to more than one element.
+	 *
+	 * @param cache <code>true</code> to cache serialized form
+	 */
+	public void setCacheSerialized(boolean cache) {
+		cacheSerialized = cache;
+		serialized      = null;
 	}
 
 	public void setXMLNS(String ns) {
@@ -904,75 +1408,114 @@ public class Element
 			xmlns = null;
 			removeAttribute("xmlns");
 		} else {
-			xmlns = ns.intern();
+			xmlns = symbols.intern(ns);
 			setAttribute("xmlns", xmlns);
 		}
 	}
 
+	/**
+	 * Returns <em>XML</em> form of the element. Content of a lazily parsed
+	 * element whose children have not been accessed yet is returned as it was
+	 * received, see <code>LazyChildList</code>, so the result is not suitable
+	 * for comparing elements.
+	 */
 	@Override
 	public String toString() {
+		String cached = serialized;
+
+		if (cached != null) {
+			return cached;
+		}
+
 		StringBuilder result = new StringBuilder();
-		toString(result);
 
-		return result.toString();
+		walk(this, new Serializer(result, false));
+
+		// Serializer has cached the whole result if caching is enabled
+		cached = serialized;
+
+		return (cached != null)
+				? cached
+				: result.toString();
 	}
 
 	public void toString(StringBuilder result) {
-		result.append("<").append(name);
-		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" ").append(key).append("=\"").append(attributes.get(key)).append(
-						"\"");
-			}    // end of for ()
-		}      // end of if (attributes != null)
+		String cached = serialized;
 
-		if (children != null && !children.isEmpty()) {
-			result.append(">");
-			childrenToString(result);
-			result.append("</").append(name).append(">");
+		if (cached != null) {
+			result.append(cached);
 		} else {
-			result.append("/>");
-		}	
+			walk(this, new Serializer(result, false));
+		}
 	}
 	
-	@Override
-	public String toStringPretty() {
-		StringBuilder result = new StringBuilder();
+	/**
+	 * Writes <em>XML</em> form of the element to the given output without
+	 * creating <code>String</code> representation of the whole element.
+	 *
+	 * @param out to write to
+	 *
+	 * @throws IOException if the output throws it
+	 */
+	public void writeTo(Appendable out) throws IOException {
+		if (out instanceof StringBuilder) {
+			toString((StringBuilder) out);
 
-		result.append("<").append(name);
-		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" ").append(key).append("=\"").append(attributes.get(key)).append(
-						"\"");
-			}    // end of for ()
-		}      // end of if (attributes != null)
+			return;
+		}
 
-		String childrenStr = childrenToStringPretty();
+		AppendableSerializer serializer = new AppendableSerializer(out);
 
-		if ((childrenStr != null) && (childrenStr.length() > 0)) {
-			result.append(">");
-			result.append("\n");
-			result.append(childrenStr);
-			result.append("</").append(name).append(">");
-			result.append("\n");
-		} else {
-			result.append("/>");
-			result.append("\n");
+		walk(this, serializer);
+		if (serializer.error != null) {
+			throw serializer.error;
 		}
-
-		return result.toString();
 	}
 
-	public String toStringNoChildren() {
-		StringBuilder result = new StringBuilder();
+	/**
+	 * Writes <em>UTF-8</em> encoded <em>XML</em> form of the element to the
+	 * given stream. Stream is not flushed.
+	 *
+	 * @param out to write to
+	 *
+	 * @throws IOException if the stream throws it
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		new ElementWriter(this).writeTo(out);
+	}
+
+	/**
+	 * Writes <em>UTF-8</em> encoded <em>XML</em> form of the element to the
+	 * given buffer.
+	 *
+	 * @param buf to write to
+	 *
+	 * @return <code>null</code> if the whole element has been written or
+	 * {@link ElementWriter} which continues writing with the next buffer if
+	 * this one is full
+	 */
+	public ElementWriter writeTo(ByteBuffer buf) {
+		ElementWriter writer = new ElementWriter(this);
+
+		return writer.writeTo(buf)
+				? null
+				: writer;
+	}
+
+	@Override
+	public String toStringPretty() {
+		StringBuilder result = new StringBuilder();
+
+		walk(this, new PrettySerializer(result));
+
+		return result.toString();
+	}
+
+	public String toStringNoChildren() {
+		StringBuilder result = new StringBuilder();
 
 		result.append("<").append(name);
-		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" ").append(key).append("=\"").append(attributes.get(key)).append(
-						"\"");
-			}    // end of for ()
-		}      // end of if (attributes != null)
+		appendAttributes(result);
 
 		String cdata = cdataToString();
 
@@ -998,21 +1541,172 @@ public class Element
 	}
 
 	public void toStringSecure(StringBuilder result) {
-		result.append("<").append(name);
+		walk(this, new Serializer(result, true));
+	}
+
+	/**
+	 * Walks the element and its subtree in document order calling the visitor
+	 * for every node. The walk uses an explicit stack, so it works for trees of
+	 * any depth.
+	 *
+	 * @param visitor receiving nodes of the tree
+	 */
+	public void accept(ElementVisitor visitor) {
+		walk(this, visitor);
+	}
+
+	/**
+	 * Drops data cached by this element and all its ancestors. It is called
+	 * by all methods modifying the element, subclasses modifying element
+	 * fields directly should call it as well.
+	 */
+	protected void invalidate() {
+		hash = 0;
+		for (Element elem = this; elem != null; elem = elem.parent) {
+			elem.serialized = null;
+		}
+	}
+
+	/**
+	 * Returns cached serialized form of the element or <code>null</code>.
+	 */
+	String getCachedSerialized() {
+		return serialized;
+	}
+
+	/**
+	 * Makes a private copy of attributes shared with clones.
+	 */
+	@SuppressWarnings({ "unchecked" })
+	private void ensureOwnAttributes() {
+		if (sharedAttributes) {
+			attributes       = (XMLIdentityHashMap<String, String>) attributes.clone();
+			sharedAttributes = false;
+		}
+	}
+
+	private void adoptChildren() {
+		if ((children != null) && !(children instanceof LazyChildList)) {
+			for (XMLNodeIfc child : children) {
+				if (child instanceof Element) {
+					((Element) child).parent = this;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks the tree without recursion, child nodes are taken directly from
+	 * <code>children</code> fields.
+	 */
+	private static void walk(Element root, ElementVisitor visitor) {
+		Element[] stack   = null;
+		int[]     indexes = null;
+		int       depth   = 0;
+		Element   elem    = root;
+
+		while (true) {
+			if (elem != null) {
+				if (visitor.enter(elem)) {
+					List<XMLNodeIfc> children = elem.children;
+					char[] source = (children instanceof LazyChildList)
+							? ((LazyChildList) children).getSource()
+							: null;
+
+					if ((children == null) || ((source != null) && visitor.unparsedContent(elem,
+							source))) {
+						visitor.leave(elem);
+					} else {
+						if (stack == null) {
+							stack   = new Element[8];
+							indexes = new int[8];
+						} else if (depth == stack.length) {
+							stack   = Arrays.copyOf(stack, depth * 2);
+							indexes = Arrays.copyOf(indexes, depth * 2);
+						}
+						stack[depth]   = elem;
+						indexes[depth] = 0;
+						++depth;
+					}
+				}
+				elem = null;
+			}
+			if (depth == 0) {
+				return;
+			}
+
+			Element          top      = stack[depth - 1];
+			List<XMLNodeIfc> children = top.children;
+			int              idx      = indexes[depth - 1];
+
+			if (idx < children.size()) {
+				XMLNodeIfc node = children.get(idx);
+
+				indexes[depth - 1] = idx + 1;
+				if (node instanceof Element) {
+					elem = (Element) node;
+				} else if (node != null) {
+					visitor.text(node);
+				}
+			} else {
+				stack[--depth] = null;
+				visitor.leave(top);
+			}
+		}
+	}
+
+	private void appendAttributes(StringBuilder result) {
 		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" ").append(key).append("=\"").append(attributes.get(key)).append(
+			for (int i = 0; i < attributes.size; i++) {
+				result.append(" ").append(attributes.keys[i]).append("=\"").append(attributes.values[i]).append(
 						"\"");
 			}    // end of for ()
 		}      // end of if (attributes != null)
-		
-		if (children != null && !children.isEmpty())  {
-			result.append(">");
-			childrenToStringSecure(result);
-			result.append("</").append(name).append(">");
+	}
+
+	/**
+	 * Returns parts of <code>toStringNoChildren()</code> form of the element,
+	 * with attributes sorted by name, for comparison without concatenating
+	 * them.
+	 */
+	private String[] noChildrenParts() {
+		String   cdata = cdataKey();
+		int      size  = (attributes == null) ? 0 : attributes.size;
+		String[] parts = new String[2 + size * 5 + ((cdata == null) ? 1 : 5)];
+		int[]    order = new int[size];
+		int      i     = 0;
+
+		// Elements have a few attributes, insertion sort is enough
+		for (int a = 0; a < size; a++) {
+			String key = (String) attributes.keys[a];
+			int    pos = a;
+
+			while ((pos > 0) && (key.compareTo((String) attributes.keys[order[pos - 1]]) < 0)) {
+				order[pos] = order[pos - 1];
+				--pos;
+			}
+			order[pos] = a;
+		}
+		parts[i++] = "<";
+		parts[i++] = name;
+		for (int a : order) {
+			parts[i++] = " ";
+			parts[i++] = (String) attributes.keys[a];
+			parts[i++] = "=\"";
+			parts[i++] = (String) attributes.values[a];
+			parts[i++] = "\"";
+		}
+		if (cdata != null) {
+			parts[i++] = ">";
+			parts[i++] = cdata;
+			parts[i++] = "</";
+			parts[i++] = name;
+			parts[i]   = ">";
 		} else {
-			result.append("/>");
+			parts[i] = "/>";
 		}
+
+		return parts;
 	}
 
 	protected String cdataToString() {
@@ -1034,20 +1728,507 @@ public class Element
 					 : null;
 	}
 
+	/**
+	 * Returns concatenated character data as used by <code>equals()</code>.
+	 * Only elements with mixed content need to build a new string here.
+	 */
+	private String cdataKey() {
+		if (children == null) {
+			return null;
+		}
+
+		String result = null;
+		int    count  = 0;
+
+		for (int i = 0; i < children.size(); i++) {
+			XMLNodeIfc child = children.get(i);
+
+			if (child instanceof CData) {
+				if (++count > 1) {
+					return cdataToString();
+				}
+				result = String.valueOf(child.toString());
+			}
+		}
+
+		return ((result != null) && (result.length() > 0))
+				? result
+				: null;
+	}
+
+	private boolean attributesEqual(Element elem) {
+		int size = (attributes == null) ? 0 : attributes.size;
+
+		if (size != ((elem.attributes == null) ? 0 : elem.attributes.size)) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			Object key   = attributes.keys[i];
+			Object value = ((i < elem.attributes.size) && (elem.attributes.keys[i] == key))
+					? elem.attributes.values[i]
+					: elem.attributes.get(key);
+
+			if (!attributes.values[i].equals(value)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes <em>XML</em> form of elements, serialized forms of elements
+	 * caching it are used and stored. Secure form hides character data and
+	 * does not use the cache.
+	 */
+	private static class Serializer
+					implements ElementVisitor {
+		private final StringBuilder result;
+		private final boolean secure;
+		private int[] starts = new int[8];
+		private int depth = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Serializer(StringBuilder result, boolean secure) {
+			this.result = result;
+			this.secure = secure;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean enter(Element element) {
+			if (element.manyParents) {
+				Arrays.fill(starts, 0, depth, -1);
+			}
+
+			String cached = secure
+					? null
+					: element.serialized;
+
+			if (cached != null) {
+				result.append(cached);
+
+				return false;
+			}
+
+			int start = result.length();
+
+			result.append("<").append(element.name);
+			element.appendAttributes(result);
+			if ((element.children == null) || element.children.isEmpty()) {
+				result.append("/>");
+				if (!secure && element.cacheSerialized) {
+					element.serialized = result.substring(start);
+				}
+
+				return false;
+			}
+			result.append(">");
+			if (depth == starts.length) {
+				starts = Arrays.copyOf(starts, depth * 2);
+			}
+			starts[depth++] = (!secure && element.cacheSerialized)
+					? start
+					: -1;
+
+			return true;
+		}
+
+		@Override
+		public void leave(Element element) {
+			result.append("</").append(element.name).append(">");
+
+			int start = starts[--depth];
+
+			if (start >= 0) {
+				element.serialized = result.substring(start);
+			}
+		}
+
+		@Override
+		public void text(XMLNodeIfc node) {
+			result.append(secure
+					? node.toStringSecure()
+					: node.toString());
+		}
+
+		@Override
+		public boolean unparsedContent(Element element, char[] source) {
+
+			// Secure form must not reveal character data of the raw content
+			if (secure) {
+				return false;
+			}
+			result.append(source);
+
+			return true;
+		}
+	}
+
+	/**
+	 * Writes <em>XML</em> form of elements to any output, cached serialized
+	 * forms are used but not stored. The first exception thrown by the output
+	 * stops writing.
+	 */
+	private static class AppendableSerializer
+					implements ElementVisitor {
+		private IOException error = null;
+		private final Appendable out;
+
+		//~--- constructors -------------------------------------------------------
+
+		private AppendableSerializer(Appendable out) {
+			this.out = out;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean enter(Element element) {
+			if (error != null) {
+				return false;
+			}
+			try {
+				String cached = element.serialized;
+
+				if (cached != null) {
+					out.append(cached);
+
+					return false;
+				}
+				out.append('<').append(element.name);
+
+				XMLIdentityHashMap<String, String> attributes = element.attributes;
+
+				if (attributes != null) {
+					for (int i = 0; i < attributes.size; i++) {
+						out.append(' ').append((String) attributes.keys[i]).append("=\"").append(
+								(String) attributes.values[i]).append('"');
+					}    // end of for ()
+				}      // end of if (attributes != null)
+				if ((element.children == null) || element.children.isEmpty()) {
+					out.append("/>");
+
+					return false;
+				}
+				out.append('>');
+
+				return true;
+			} catch (IOException e) {
+				error = e;
+
+				return false;
+			}
+		}
+
+		@Override
+		public void leave(Element element) {
+			if (error == null) {
+				try {
+					out.append("</").append(element.name).append('>');
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		}
+
+		@Override
+		public void text(XMLNodeIfc node) {
+			if (error == null) {
+				try {
+					out.append(node.toString());
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		}
+
+		@Override
+		public boolean unparsedContent(Element element, char[] source) {
+			if (error == null) {
+				try {
+					out.append(CharBuffer.wrap(source));
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Writes human readable <em>XML</em> form of elements, each tag is
+	 * followed by a new line.
+	 */
+	private static class PrettySerializer
+					implements ElementVisitor {
+		private final StringBuilder result;
+		private int[] starts = new int[8];
+		private int depth = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		private PrettySerializer(StringBuilder result) {
+			this.result = result;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean enter(Element element) {
+			result.append("<").append(element.name);
+			element.appendAttributes(result);
+			result.append(">\n");
+			if (depth == starts.length) {
+				starts = Arrays.copyOf(starts, depth * 2);
+			}
+			starts[depth++] = result.length();
+
+			return true;
+		}
+
+		@Override
+		public void leave(Element element) {
+			int start = starts[--depth];
+
+			if (result.length() == start) {
+
+				// Nothing has been written for children, so the element is empty
+				result.setLength(start - 2);
+				result.append("/>\n");
+			} else {
+				result.append("</").append(element.name).append(">\n");
+			}
+		}
+
+		@Override
+		public void text(XMLNodeIfc node) {
+			result.append(node.toStringPretty());
+		}
+	}
+
+	/**
+	 * Iterator over children elements skipping character data.
+	 */
+	private static class ChildElementsIterator
+					implements Iterator<Element> {
+		private final List<XMLNodeIfc> children;
+		private int next = -1;
+
+		//~--- constructors -------------------------------------------------------
+
+		private ChildElementsIterator(List<XMLNodeIfc> children) {
+			this.children = children;
+			advance();
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean hasNext() {
+			return (children != null) && (next < children.size());
+		}
+
+		@Override
+		public Element next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Element result = (Element) children.get(next);
+
+			advance();
+
+			return result;
+		}
+
+		private void advance() {
+			if (children != null) {
+				int size = children.size();
+
+				do {
+					++next;
+				} while ((next < size) && !(children.get(next) instanceof Element));
+			}
+		}
+	}
+
+	/**
+	 * Spliterator over children elements skipping character data, range of
+	 * child nodes may be split for parallel processing.
+	 */
+	private static class ChildElementsSpliterator
+					implements Spliterator<Element> {
+		private final List<XMLNodeIfc> children;
+		private final int fence;
+		private int index;
+
+		//~--- constructors -------------------------------------------------------
+
+		private ChildElementsSpliterator(List<XMLNodeIfc> children, int index, int fence) {
+			this.children = children;
+			this.index    = index;
+			this.fence    = fence;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+
+		@Override
+		public long estimateSize() {
+			return fence - index;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Element> action) {
+			while (index < fence) {
+				XMLNodeIfc node = children.get(index++);
+
+				if (node instanceof Element) {
+					action.accept((Element) node);
+				}
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Element> action) {
+			while (index < fence) {
+				XMLNodeIfc node = children.get(index++);
+
+				if (node instanceof Element) {
+					action.accept((Element) node);
+
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public Spliterator<Element> trySplit() {
+			int mid = (index + fence) >>> 1;
+
+			if (mid <= index) {
+				return null;
+			}
+
+			Spliterator<Element> result = new ChildElementsSpliterator(children, index, mid);
+
+			index = mid;
+
+			return result;
+		}
+	}
+
 	public static interface Matcher<T> {
 		
 		boolean match(T item);
 		
 	}
 	
+	/**
+	 * Compact map of element attributes. Keys are compared by identity, so they
+	 * must be interned, and are kept in parallel arrays in insertion order.
+	 * Lookups scan the arrays linearly, only maps bigger than
+	 * <code>HASH_THRESHOLD</code> also keep a hash index of keys. Neither keys
+	 * nor values can be <code>null</code>.
+	 * <p>
+	 * This class no longer extends <code>IdentityHashMap</code>, code using
+	 * the <code>attributes</code> field as <code>IdentityHashMap</code> must use
+	 * it as <code>Map</code> instead.
+	 * </p>
+	 */
 	protected class XMLIdentityHashMap<K, V>
-					extends IdentityHashMap<K, V> {
-		private static final long serialVersionUID = 1L;
+					extends AbstractMap<K, V>
+					implements Cloneable {
+
+		/** Number of attributes above which a hash index of keys is kept */
+		static final int HASH_THRESHOLD = 8;
+
+		private IdentityHashMap<Object, Integer> index = null;
+		Object[] keys;
+		int size = 0;
+		Object[] values;
 
 		private XMLIdentityHashMap(int size) {
-			super(size);
+			keys   = new Object[Math.max(size, 1)];
+			values = new Object[keys.length];
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill(keys, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			size  = 0;
+			index = null;
 		}
 
+		@SuppressWarnings({ "unchecked" })
+		@Override
+		public Object clone() {
+			XMLIdentityHashMap<K, V> result;
+
+			try {
+				result = (XMLIdentityHashMap<K, V>) super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new InternalError();
+			}
+			result.keys   = Arrays.copyOf(keys, Math.max(size, 1));
+			result.values = Arrays.copyOf(values, result.keys.length);
+			result.index  = (index != null)
+					? new IdentityHashMap<Object, Integer>(index)
+					: null;
+
+			return result;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return indexOf(key) >= 0;
+		}
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		@SuppressWarnings({ "unchecked" })
+		@Override
+		public void forEach(BiConsumer<? super K, ? super V> action) {
+			for (int i = 0; i < size; i++) {
+				action.accept((K) keys[i], (V) values[i]);
+			}
+		}
+
+		@SuppressWarnings({ "unchecked" })
+		@Override
+		public V get(Object key) {
+			int idx = indexOf(key);
+
+			return (idx >= 0)
+					? (V) values[idx]
+					: null;
+		}
+
+		@SuppressWarnings({ "unchecked" })
 		@Override
 		public V put(K key, V value) {
 			if ((key == null) || (value == null)) {
@@ -1055,7 +2236,132 @@ public class Element
 						"Neither attribute key or value can be set to null. Attribute: " + key + ", value: " + value);
 			}
 
-			return super.put(key, value);
+			int idx = indexOf(key);
+
+			if (idx >= 0) {
+				V old = (V) values[idx];
+
+				values[idx] = value;
+
+				return old;
+			}
+			if (size == keys.length) {
+				keys   = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, keys.length);
+			}
+			keys[size]   = key;
+			values[size] = value;
+			++size;
+			if (index != null) {
+				index.put(key, size - 1);
+			} else if (size > HASH_THRESHOLD) {
+				reindex();
+			}
+
+			return null;
+		}
+
+		@SuppressWarnings({ "unchecked" })
+		@Override
+		public V remove(Object key) {
+			int idx = indexOf(key);
+
+			if (idx < 0) {
+				return null;
+			}
+
+			V old = (V) values[idx];
+
+			removeAt(idx);
+
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		private int indexOf(Object key) {
+			if (index != null) {
+				Integer idx = index.get(key);
+
+				return (idx != null)
+						? idx
+						: -1;
+			}
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == key) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+
+		private void reindex() {
+			if (size > HASH_THRESHOLD) {
+				index = new IdentityHashMap<Object, Integer>(size * 2);
+				for (int i = 0; i < size; i++) {
+					index.put(keys[i], i);
+				}
+			} else {
+				index = null;
+			}
+		}
+
+		private void removeAt(int idx) {
+			System.arraycopy(keys, idx + 1, keys, idx, size - idx - 1);
+			System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+			--size;
+			keys[size]   = null;
+			values[size] = null;
+			if (index != null) {
+				reindex();
+			}
+		}
+
+		private class EntryIterator
+						implements Iterator<Map.Entry<K, V>> {
+			private int current = -1;
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@SuppressWarnings({ "unchecked" })
+			@Override
+			public Map.Entry<K, V> next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				current = next++;
+
+				final int idx = current;
+
+				return new AbstractMap.SimpleEntry<K, V>((K) keys[idx], (V) values[idx]) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public V setValue(V value) {
+						put(getKey(), value);
+
+						return super.setValue(value);
+					}
+				};
+			}
+
+			@Override
+			public void remove() {
+				if (current < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(current);
+				next    = current;
+				current = -1;
+			}
 		}
 	}
 }    // Element
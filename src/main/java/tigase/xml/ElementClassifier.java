@@ -0,0 +1,360 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>ElementClassifier</code> - finds all rules matching an element in a
+ * single pass over the element. Rules are given as paths in the form
+ * accepted by <code>ElementPath</code>, ie.
+ * <code>iq[type=get]/query[xmlns=jabber:iq:roster]</code>. The first name
+ * must match the classified element and each next one must match some child
+ * of the element matched by the previous one.
+ * <p>
+ * A rule matches if any branch of the element matches it, which differs from
+ * <code>ElementPath.find()</code> following only the first child matching
+ * each step. For <code>&lt;iq&gt;&lt;query/&gt;&lt;query&gt;&lt;item/&gt;&lt;/query&gt;&lt;/iq&gt;</code>
+ * rule <code>iq/query/item</code> matches, while the same path finds no
+ * element, because the first <code>query</code> element has no children.
+ * </p>
+ * <p>
+ * All rules are compiled into a tree keyed by interned element names and
+ * namespaces, rules with common beginning share nodes of the tree. So the
+ * time of classification depends on the size of the element and not on the
+ * number of rules. Rules given as <code>Element.Matcher</code> can be added as
+ * well, but they are checked one by one for every element.
+ * </p>
+ * <p>
+ * Rules should be added before the classifier is used, once all rules are
+ * added it may be used from many threads.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public final class ElementClassifier {
+	private final List<Element.Matcher<Element>> matchers = new ArrayList<Element.Matcher<Element>>();
+	private int[] matchers_ids = new int[0];
+	private final Node root = new Node();
+	private int rules = 0;
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Compares time of classification of a stanza by this classifier with
+	 * checking the same rules one by one with <code>ElementPath.find()</code>.
+	 *
+	 * @param args number of rules and number of iterations, optional
+	 */
+	public static void main(String[] args) {
+		int rulesCount = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		ElementClassifier classifier = new ElementClassifier();
+		ElementPath[] paths = new ElementPath[rulesCount];
+
+		for (int i = 0; i < rulesCount; i++) {
+			paths[i] = ((i % 2) == 0)
+					? ElementPath.compile("iq[type=get]/query[xmlns=urn:test:" + i + "]")
+					: ElementPath.compile("message[type=chat]/x[xmlns=urn:test:" + i + "]/item");
+			classifier.addRule(paths[i]);
+		}
+
+		Element stanza = new Element("iq", new String[] { "type", "id" }, new String[] { "get", "1" });
+
+		stanza.addChild(new Element("query", new String[] { "xmlns" }, new String[] { "urn:test:10" }));
+
+		BitSet result = new BitSet(rulesCount);
+		int matched = 0;
+
+		// Warm up both ways before measuring
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+
+			for (int i = 0; i < iterations; i++) {
+				result.clear();
+				classifier.classify(stanza, result);
+				matched += result.cardinality();
+			}
+
+			long classified = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (int j = 0; j < rulesCount; j++) {
+					if (paths[j].find(stanza) != null) {
+						++matched;
+					}
+				}
+			}
+
+			long sequential = System.nanoTime() - start;
+
+			if (round > 0) {
+				System.out.println("Rules: " + rulesCount + ", classifier: " + (classified / iterations)
+						+ " ns/stanza, sequential: " + (sequential / iterations) + " ns/stanza, matches: "
+						+ matched);
+			}
+		}
+	}
+
+	/**
+	 * Adds rule given as a path.
+	 *
+	 * @param path rule path, see <code>ElementPath</code> for syntax
+	 *
+	 * @return id of the rule
+	 *
+	 * @throws IllegalArgumentException if the path is malformed
+	 */
+	public int addRule(String path) {
+		return addRule(ElementPath.compile(path));
+	}
+
+	/**
+	 * Adds rule given as a compiled path.
+	 *
+	 * @param path rule path
+	 *
+	 * @return id of the rule
+	 */
+	public int addRule(ElementPath path) {
+		Node node = root;
+		Step step = null;
+
+		for (int i = 0; i < path.length(); i++) {
+			if (step != null) {
+				if (step.children == null) {
+					step.children = new Node();
+				}
+				node = step.children;
+			}
+			step = node.getStep(path, i);
+		}
+		step.addRule(rules);
+
+		return rules++;
+	}
+
+	/**
+	 * Adds rule which is checked by calling <code>match()</code> of the given
+	 * matcher for every classified element.
+	 *
+	 * @param matcher rule
+	 *
+	 * @return id of the rule
+	 */
+	public int addRule(Element.Matcher<Element> matcher) {
+		matchers.add(matcher);
+		matchers_ids = Arrays.copyOf(matchers_ids, matchers_ids.length + 1);
+		matchers_ids[matchers_ids.length - 1] = rules;
+
+		return rules++;
+	}
+
+	/**
+	 * Finds all rules matching the given element.
+	 *
+	 * @param elem element to classify
+	 *
+	 * @return set of ids of matching rules
+	 */
+	public BitSet classify(Element elem) {
+		BitSet result = new BitSet(rules);
+
+		classify(elem, result);
+
+		return result;
+	}
+
+	/**
+	 * Finds all rules matching the given element and sets their ids in the
+	 * given set. The set is not cleared, so it may be reused after calling
+	 * <code>clear()</code> on it.
+	 *
+	 * @param elem element to classify
+	 * @param result set to which ids of matching rules are added
+	 */
+	public void classify(Element elem, BitSet result) {
+		match(root, elem, result);
+		for (int i = 0; i < matchers_ids.length; i++) {
+			if (matchers.get(i).match(elem)) {
+				result.set(matchers_ids[i]);
+			}
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns number of added rules, rule ids are lower than this number.
+	 *
+	 * @return number of rules
+	 */
+	public int getRulesCount() {
+		return rules;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private static void match(Node node, Element elem, BitSet result) {
+		Bucket bucket = node.buckets.get(elem.getName());
+
+		if (bucket == null) {
+			return;
+		}
+		if (bucket.any != null) {
+			match(bucket.any, elem, result);
+		}
+		if (bucket.byXMLNS != null) {
+			String xmlns = elem.getXMLNS();
+
+			if (xmlns != null) {
+				Step[] steps = bucket.byXMLNS.get(xmlns);
+
+				if (steps != null) {
+					match(steps, elem, result);
+				}
+			}
+		}
+	}
+
+	private static void match(Step[] steps, Element elem, BitSet result) {
+		for (int i = 0; i < steps.length; i++) {
+			Step step = steps[i];
+
+			if (!step.path.matchesPredicates(elem, step.index)) {
+				continue;
+			}
+			for (int j = 0; j < step.rules_count; j++) {
+				result.set(step.rules[j]);
+			}
+			if ((step.children != null) && (elem.children != null)) {
+				List<XMLNodeIfc> children = elem.children;
+
+				for (int j = 0; j < children.size(); j++) {
+					XMLNodeIfc child = children.get(j);
+
+					if (child instanceof Element) {
+						match(step.children, (Element) child, result);
+					}
+				}
+			}
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Steps for the same element name, grouped by required namespace.
+	 */
+	private static class Bucket {
+		private Step[] any = null;
+		private IdentityHashMap<String, Step[]> byXMLNS = null;
+	}
+
+	/**
+	 * Level of the tree, steps are looked up by interned element name.
+	 */
+	private static class Node {
+		private final IdentityHashMap<String, Bucket> buckets = new IdentityHashMap<String, Bucket>();
+
+		private Step getStep(ElementPath path, int index) {
+			String name   = path.getName(index);
+			String xmlns  = path.getXMLNS(index);
+			Bucket bucket = buckets.get(name);
+
+			if (bucket == null) {
+				bucket = new Bucket();
+				buckets.put(name, bucket);
+			}
+
+			Step[] steps = (xmlns == null)
+					? bucket.any
+					: ((bucket.byXMLNS == null) ? null : bucket.byXMLNS.get(xmlns));
+
+			if (steps != null) {
+				for (Step step : steps) {
+					if (step.path.sameStep(step.index, path, index)) {
+						return step;
+					}
+				}
+				steps = Arrays.copyOf(steps, steps.length + 1);
+			} else {
+				steps = new Step[1];
+			}
+
+			Step step = new Step(path, index);
+
+			steps[steps.length - 1] = step;
+			if (xmlns == null) {
+				bucket.any = steps;
+			} else {
+				if (bucket.byXMLNS == null) {
+					bucket.byXMLNS = new IdentityHashMap<String, Step[]>();
+				}
+				bucket.byXMLNS.put(xmlns, steps);
+			}
+
+			return step;
+		}
+	}
+
+	/**
+	 * Single name of the rule path with its predicates, rules ending at this
+	 * step and steps for children.
+	 */
+	private static class Step {
+		private Node children = null;
+		private final int index;
+		private final ElementPath path;
+		private int[] rules = new int[1];
+		private int rules_count = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Step(ElementPath path, int index) {
+			this.path  = path;
+			this.index = index;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private void addRule(int id) {
+			if (rules_count == rules.length) {
+				rules = Arrays.copyOf(rules, rules.length * 2);
+			}
+			rules[rules_count++] = id;
+		}
+	}
+}    // ElementClassifier
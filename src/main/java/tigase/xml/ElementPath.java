@@ -0,0 +1,317 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>ElementPath</code> - compiled path to an element in a subtree. The
+ * path is parsed once and all names are interned, so it can be evaluated
+ * many times using identity comparisons and without any allocation.
+ * <p>
+ * The path has the same form as the one accepted by
+ * <code>Element.findChild(String)</code>: element names separated by
+ * <code>/</code>, where the first name must match the element the path is
+ * evaluated against. Each name may be followed by predicates in square
+ * brackets:
+ * </p>
+ * <ul>
+ * <li><code>[xmlns=ns]</code> - element namespace must be <code>ns</code>,
+ * inherited namespaces are taken into account,</li>
+ * <li><code>[name=value]</code> - element must have attribute
+ * <code>name</code> with the given value,</li>
+ * <li><code>[name]</code> - element must have attribute <code>name</code>.</li>
+ * </ul>
+ * For example:
+ * <code>/message/x[xmlns=jabber:x:data][type=submit]/field[var]</code>.
+ * Values may contain <code>/</code> but not <code>]</code>.
+ * <p>
+ * At each step the path follows only the first child matching the step, as
+ * <code>Element.findChild(String[])</code> does, other children with the same
+ * name are not searched. <code>ElementClassifier</code> matches rules against
+ * all children instead.
+ * </p>
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public final class ElementPath {
+	private static final String[] NO_ATTRS = new String[0];
+	private static final SymbolTable symbols = SymbolTable.getDefault();
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final String[][] att_names;
+	private final String[][] att_values;
+	private final String[] names;
+	private final String path;
+	private final String[] xmlns;
+
+	//~--- constructors ---------------------------------------------------------
+
+	private ElementPath(String path, List<String> steps) {
+		int size = steps.size();
+
+		if (size == 0) {
+			throw new IllegalArgumentException("Empty element path");
+		}
+		this.path  = path;
+		names      = new String[size];
+		xmlns      = new String[size];
+		att_names  = new String[size][];
+		att_values = new String[size][];
+		for (int i = 0; i < size; i++) {
+			parseStep(i, steps.get(i));
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Compiles path in the form <code>/name[predicate]/name</code>, leading
+	 * <code>/</code> is optional.
+	 *
+	 * @param path to compile
+	 *
+	 * @return compiled path
+	 *
+	 * @throws IllegalArgumentException if the path is empty or malformed
+	 */
+	public static ElementPath compile(String path) {
+		List<String> steps = new ArrayList<String>();
+		int          start = (path.startsWith("/")) ? 1 : 0;
+		boolean      inPredicate = false;
+
+		for (int i = start; i < path.length(); i++) {
+			char chr = path.charAt(i);
+
+			if (chr == '[') {
+				inPredicate = true;
+			} else if (chr == ']') {
+				inPredicate = false;
+			} else if ((chr == '/') && !inPredicate) {
+				steps.add(path.substring(start, i));
+				start = i + 1;
+			}
+		}
+		steps.add(path.substring(start));
+
+		return new ElementPath(path, steps);
+	}
+
+	/**
+	 * Compiles path given as an array of names, in the same form as accepted by
+	 * <code>Element.findChild(String[])</code>. Each name may be followed by
+	 * predicates.
+	 *
+	 * @param elementPath to compile
+	 *
+	 * @return compiled path
+	 *
+	 * @throws IllegalArgumentException if the path is empty or malformed
+	 */
+	public static ElementPath compile(String[] elementPath) {
+		List<String> steps = new ArrayList<String>(elementPath.length);
+
+		for (int i = 0; i < elementPath.length; i++) {
+			if ((i > 0) || !elementPath[i].isEmpty()) {
+				steps.add(elementPath[i]);
+			}
+		}
+
+		return new ElementPath(String.join("/", elementPath), steps);
+	}
+
+	/**
+	 * Finds element pointed by this path in the subtree of the given element.
+	 *
+	 * @param root element the path is evaluated against, its name must match
+	 * the first name of the path
+	 *
+	 * @return found element or <code>null</code>
+	 */
+	public Element find(Element root) {
+		if ((root == null) ||!matches(root, 0)) {
+			return null;
+		}
+
+		Element child = root;
+
+		for (int i = 1; (i < names.length) && (child != null); i++) {
+			child = findChild(child, i);
+		}
+
+		return child;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/**
+	 * Returns number of element names in the path.
+	 *
+	 * @return path length
+	 */
+	public int length() {
+		return names.length;
+	}
+
+	/**
+	 * Checks if element matches name and predicates of the given step of the
+	 * path, children are not checked.
+	 *
+	 * @param elem element to check
+	 * @param step index of name in the path
+	 *
+	 * @return <code>true</code> if element matches the step
+	 */
+	boolean matches(Element elem, int step) {
+		if (elem.getName() != names[step]) {
+			return false;
+		}
+
+		return matchesPredicates(elem, step);
+	}
+
+	boolean matchesPredicates(Element elem, int step) {
+		if ((xmlns[step] != null) && (elem.getXMLNS() != xmlns[step])) {
+			return false;
+		}
+
+		String[] attNames = att_names[step];
+
+		for (int i = 0; i < attNames.length; i++) {
+			String value = elem.getAttributeStaticStr(attNames[i]);
+
+			if ((value == null) || ((att_values[step][i] != null) &&
+					!att_values[step][i].equals(value))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if the given steps of both paths have the same name and
+	 * predicates.
+	 */
+	boolean sameStep(int step, ElementPath other, int other_step) {
+		return (names[step] == other.names[other_step]) && (xmlns[step] == other.xmlns[other_step]) &&
+				Arrays.equals(att_names[step], other.att_names[other_step]) && Arrays.equals(
+				att_values[step], other.att_values[other_step]);
+	}
+
+	String getName(int step) {
+		return names[step];
+	}
+
+	String getXMLNS(int step) {
+		return xmlns[step];
+	}
+
+	private Element findChild(Element parent, int step) {
+		List<XMLNodeIfc> children = parent.children;
+
+		if (children == null) {
+			return null;
+		}
+		for (int i = 0; i < children.size(); i++) {
+			XMLNodeIfc node = children.get(i);
+
+			if ((node instanceof Element) && matches((Element) node, step)) {
+				return (Element) node;
+			}
+		}
+
+		return null;
+	}
+
+	private void parseStep(int step, String str) {
+		int idx = str.indexOf('[');
+
+		if (idx == 0) {
+			throw new IllegalArgumentException("Missing element name in path: " + path);
+		}
+
+		String name = ((idx < 0) ? str : str.substring(0, idx)).trim();
+
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("Missing element name in path: " + path);
+		}
+		names[step] = symbols.intern(name);
+
+		List<String> attNames  = null;
+		List<String> attValues = null;
+
+		while (idx >= 0) {
+			int end = str.indexOf(']', idx);
+
+			if (end < 0) {
+				throw new IllegalArgumentException("Unclosed predicate in path: " + path);
+			}
+
+			String predicate = str.substring(idx + 1, end);
+			int    eq        = predicate.indexOf('=');
+			String key       = ((eq < 0) ? predicate : predicate.substring(0, eq)).trim();
+			String value     = (eq < 0) ? null : predicate.substring(eq + 1);
+
+			if (key.isEmpty()) {
+				throw new IllegalArgumentException("Missing attribute name in path: " + path);
+			}
+			if ((key.equals("xmlns")) && (value != null)) {
+				xmlns[step] = symbols.intern(value);
+			} else {
+				if (attNames == null) {
+					attNames  = new ArrayList<String>();
+					attValues = new ArrayList<String>();
+				}
+				attNames.add(symbols.intern(key));
+				attValues.add(value);
+			}
+			idx = end + 1;
+			if (idx == str.length()) {
+				idx = -1;
+			} else if (str.charAt(idx) != '[') {
+				throw new IllegalArgumentException("Unexpected characters after predicate in path: " +
+						path);
+			}
+		}
+		att_names[step]  = (attNames == null) ? NO_ATTRS : attNames.toArray(new String[attNames.size()]);
+		att_values[step] = (attValues == null) ? NO_ATTRS : attValues.toArray(new String[attValues
+				.size()]);
+	}
+}    // ElementPath
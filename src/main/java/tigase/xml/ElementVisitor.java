@@ -0,0 +1,87 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+
+package tigase.xml;
+
+/**
+ * <code>ElementVisitor</code> receives nodes of an element tree walked by
+ * {@link Element#accept(ElementVisitor)} in document order. The tree is walked
+ * using an explicit stack, so the depth of the tree is not limited by the
+ * depth of the call stack.
+ * <p>
+ * For each element <code>enter</code> is called first. If it returns
+ * <code>true</code> children of the element are visited and then
+ * <code>leave</code> is called. If it returns <code>false</code> neither
+ * children nor <code>leave</code> are visited, so the visitor can handle the
+ * whole subtree itself or prune it.
+ * </p>
+ * <p>
+ * The tree must not be modified during the walk, apart from the element
+ * passed to <code>leave</code>.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public interface ElementVisitor {
+	/**
+	 * Called when the element is entered, before its children.
+	 *
+	 * @param element entered element
+	 *
+	 * @return <code>true</code> if children of the element should be visited,
+	 * <code>false</code> to skip children and <code>leave</code> of the element
+	 */
+	boolean enter(Element element);
+
+	/**
+	 * Called after all children of the element have been visited.
+	 *
+	 * @param element left element
+	 */
+	void leave(Element element);
+
+	/**
+	 * Called for child nodes which are not elements, that is character data.
+	 *
+	 * @param node visited node
+	 */
+	default void text(XMLNodeIfc node) {}
+
+	/**
+	 * Called for an entered element whose content is kept as raw text because
+	 * it has not been parsed yet, see <code>DomBuilderHandler</code> lazy mode.
+	 * The visitor may use the raw content and avoid parsing it.
+	 *
+	 * @param element element owning the content
+	 * @param source raw content of the element, it must not be modified
+	 *
+	 * @return <code>true</code> if the content has been handled and the walker
+	 * should go to <code>leave</code>, <code>false</code> to parse the content
+	 * and visit its nodes
+	 */
+	default boolean unparsedContent(Element element, char[] source) {
+		return false;
+	}
+}    // ElementVisitor
@@ -0,0 +1,463 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>ElementWriter</code> - writes <em>UTF-8</em> encoded <em>XML</em> form
+ * of an element directly to byte buffers or streams, without creating
+ * <code>String</code> representation of the element first.
+ * <p>
+ * When the buffer is full writing stops and <code>writeTo</code> returns
+ * <code>false</code>, the next call continues with the next buffer exactly
+ * where the previous one stopped, so the element can be written using
+ * buffers of any size. Encoded names of elements and attributes are cached,
+ * as they are interned and used over and over again.
+ * </p>
+ * <p>
+ * Element must not be modified until it is completely written. Instances are
+ * not thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public final class ElementWriter {
+	private static final byte[] CLOSE = { '>' };
+	private static final byte[] CLOSE_EMPTY = { '/', '>' };
+	private static final byte[] END_OPEN = { '<', '/' };
+	private static final byte[] EQUALS = { '=', '"' };
+	private static final int NAMES_CACHE_SIZE = 1024;
+	private static final NameBytes[] names = new NameBytes[NAMES_CACHE_SIZE];
+	private static final byte[] OPEN = { '<' };
+	private static final byte[] QUOTE = { '"' };
+	private static final byte[] SPACE = { ' ' };
+
+	/** Size of buffer used to write to streams */
+	private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+	// Steps of writing an element
+	private static final int S_START = 0;
+	private static final int S_NAME = 1;
+	private static final int S_ATTRIBUTES = 2;
+	private static final int S_START_CLOSE = 3;
+	private static final int S_CHILDREN = 4;
+	private static final int S_END_OPEN = 5;
+	private static final int S_END_NAME = 6;
+	private static final int S_END_CLOSE = 7;
+	private static final int S_CACHED = 8;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private int depth = 0;
+	private Element[] elements = new Element[8];
+	private int[] indexes = new int[8];
+	private int[] parts = new int[8];
+
+	/** Encoded character which did not fit in the buffer */
+	private final byte[] pending = new byte[4];
+	private int pending_chars = 0;
+	private int pending_len = 0;
+	private int pending_pos = 0;
+
+	/** Number of bytes or characters of the current piece already written */
+	private int pos = 0;
+	private int[] steps = new int[8];
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new <code>ElementWriter</code> for the given element.
+	 *
+	 * @param element to write
+	 */
+	public ElementWriter(Element element) {
+		push(element);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns <code>true</code> if the whole element has been written.
+	 */
+	public boolean isComplete() {
+		return depth == 0;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Writes as much of the element as fits in remaining space of the buffer.
+	 *
+	 * @param buf to write to
+	 *
+	 * @return <code>true</code> if the whole element has been written,
+	 * <code>false</code> if the buffer is full and writing should be continued
+	 * with the next buffer
+	 */
+	public boolean writeTo(ByteBuffer buf) {
+		while (depth > 0) {
+			int top = depth - 1;
+			Element elem = elements[top];
+
+			switch (steps[top]) {
+				case S_START :
+					String cached = elem.getCachedSerialized();
+
+					if (cached != null) {
+						steps[top] = S_CACHED;
+
+						break;
+					}
+					if (!put(buf, OPEN)) {
+						return false;
+					}
+					steps[top] = S_NAME;
+
+					break;
+
+				case S_NAME :
+					if (!put(buf, nameBytes(elem.name))) {
+						return false;
+					}
+					steps[top] = S_ATTRIBUTES;
+
+					break;
+
+				case S_ATTRIBUTES :
+					if (!writeAttributes(buf, top, elem.attributes)) {
+						return false;
+					}
+					steps[top] = S_START_CLOSE;
+
+					break;
+
+				case S_START_CLOSE :
+					boolean empty = (elem.children == null) || elem.children.isEmpty();
+
+					if (!put(buf, empty
+							? CLOSE_EMPTY
+							: CLOSE)) {
+						return false;
+					}
+					if (empty) {
+						pop();
+					} else {
+						steps[top]   = S_CHILDREN;
+						indexes[top] = 0;
+					}
+
+					break;
+
+				case S_CHILDREN :
+					List<XMLNodeIfc> children = elem.children;
+					char[] source = (children instanceof LazyChildList)
+							? ((LazyChildList) children).getSource()
+							: null;
+
+					if (source != null) {
+						if (!put(buf, CharBuffer.wrap(source))) {
+							return false;
+						}
+						steps[top] = S_END_OPEN;
+					} else if (indexes[top] < children.size()) {
+						XMLNodeIfc child = children.get(indexes[top]);
+
+						if (child instanceof Element) {
+							++indexes[top];
+							push((Element) child);
+						} else {
+							String str = (child != null)
+									? child.toString()
+									: null;
+
+							if ((str != null) && !put(buf, str)) {
+								return false;
+							}
+							++indexes[top];
+						}
+					} else {
+						steps[top] = S_END_OPEN;
+					}
+
+					break;
+
+				case S_END_OPEN :
+					if (!put(buf, END_OPEN)) {
+						return false;
+					}
+					steps[top] = S_END_NAME;
+
+					break;
+
+				case S_END_NAME :
+					if (!put(buf, nameBytes(elem.name))) {
+						return false;
+					}
+					steps[top] = S_END_CLOSE;
+
+					break;
+
+				case S_END_CLOSE :
+					if (!put(buf, CLOSE)) {
+						return false;
+					}
+					pop();
+
+					break;
+
+				case S_CACHED :
+					if (!put(buf, elem.getCachedSerialized())) {
+						return false;
+					}
+					pop();
+
+					break;
+
+				default :
+					assert false : "Unknown ElementWriter step: " + steps[top];
+
+					break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the rest of the element to the stream. Stream is not flushed.
+	 *
+	 * @param out to write to
+	 *
+	 * @throws IOException if the stream throws it
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		boolean complete;
+
+		do {
+			complete = writeTo(buf);
+			out.write(buf.array(), 0, buf.position());
+			buf.clear();
+		} while (!complete);
+	}
+
+	/**
+	 * Returns <em>UTF-8</em> encoded name, names are cached using their
+	 * identity, as they are interned.
+	 */
+	static byte[] nameBytes(String name) {
+		int idx = System.identityHashCode(name) & (NAMES_CACHE_SIZE - 1);
+		NameBytes entry = names[idx];
+
+		if ((entry == null) || (entry.name != name)) {
+			entry      = new NameBytes(name, name.getBytes(StandardCharsets.UTF_8));
+			names[idx] = entry;
+		}
+
+		return entry.bytes;
+	}
+
+	private void pop() {
+		elements[--depth] = null;
+	}
+
+	private void push(Element element) {
+		if (depth == elements.length) {
+			elements = Arrays.copyOf(elements, depth * 2);
+			indexes  = Arrays.copyOf(indexes, depth * 2);
+			parts    = Arrays.copyOf(parts, depth * 2);
+			steps    = Arrays.copyOf(steps, depth * 2);
+		}
+		elements[depth] = element;
+		indexes[depth]  = 0;
+		parts[depth]    = 0;
+		steps[depth]    = S_START;
+		++depth;
+	}
+
+	private boolean put(ByteBuffer buf, byte[] bytes) {
+		int count = Math.min(bytes.length - pos, buf.remaining());
+
+		buf.put(bytes, pos, count);
+		pos += count;
+		if (pos < bytes.length) {
+			return false;
+		}
+		pos = 0;
+
+		return true;
+	}
+
+	/**
+	 * Encodes characters of the piece which were not written yet. Bytes of a
+	 * character which do not fit in the buffer are kept and written to the next
+	 * one. Unpaired surrogates are replaced with '?' like
+	 * <code>String.getBytes()</code> does.
+	 */
+	private boolean put(ByteBuffer buf, CharSequence str) {
+		int len = str.length();
+
+		while (pos < len) {
+			if (pending_len == 0) {
+				char chr = str.charAt(pos);
+
+				if (chr < 0x80) {
+					if (!buf.hasRemaining()) {
+						return false;
+					}
+					buf.put((byte) chr);
+					++pos;
+
+					continue;
+				}
+				encode(str, chr);
+			}
+
+			int count = Math.min(pending_len - pending_pos, buf.remaining());
+
+			buf.put(pending, pending_pos, count);
+			pending_pos += count;
+			if (pending_pos < pending_len) {
+				return false;
+			}
+			pos         += pending_chars;
+			pending_len = 0;
+			pending_pos = 0;
+		}
+		pos = 0;
+
+		return true;
+	}
+
+	/**
+	 * Encodes non ASCII character at the current position of the piece to the
+	 * pending bytes.
+	 */
+	private void encode(CharSequence str, char chr) {
+		pending_chars = 1;
+		if (chr < 0x800) {
+			pending[0]  = (byte) (0xC0 | (chr >> 6));
+			pending[1]  = (byte) (0x80 | (chr & 0x3F));
+			pending_len = 2;
+		} else if (Character.isSurrogate(chr)) {
+			if (Character.isHighSurrogate(chr) && (pos + 1 < str.length())
+					&& Character.isLowSurrogate(str.charAt(pos + 1))) {
+				int code = Character.toCodePoint(chr, str.charAt(pos + 1));
+
+				pending[0]    = (byte) (0xF0 | (code >> 18));
+				pending[1]    = (byte) (0x80 | ((code >> 12) & 0x3F));
+				pending[2]    = (byte) (0x80 | ((code >> 6) & 0x3F));
+				pending[3]    = (byte) (0x80 | (code & 0x3F));
+				pending_len   = 4;
+				pending_chars = 2;
+			} else {
+				pending[0]  = (byte) '?';
+				pending_len = 1;
+			}
+		} else {
+			pending[0]  = (byte) (0xE0 | (chr >> 12));
+			pending[1]  = (byte) (0x80 | ((chr >> 6) & 0x3F));
+			pending[2]  = (byte) (0x80 | (chr & 0x3F));
+			pending_len = 3;
+		}
+	}
+
+	/**
+	 * Writes attributes starting from the one pointed by the frame index, each
+	 * attribute is written in parts pointed by the frame part.
+	 */
+	private boolean writeAttributes(ByteBuffer buf, int top,
+			Element.XMLIdentityHashMap<String, String> attributes) {
+		if (attributes == null) {
+			return true;
+		}
+		while (indexes[top] < attributes.size) {
+			int i = indexes[top];
+			boolean done;
+
+			switch (parts[top]) {
+				case 0 :
+					done = put(buf, SPACE);
+
+					break;
+
+				case 1 :
+					done = put(buf, nameBytes((String) attributes.keys[i]));
+
+					break;
+
+				case 2 :
+					done = put(buf, EQUALS);
+
+					break;
+
+				case 3 :
+					done = put(buf, (String) attributes.values[i]);
+
+					break;
+
+				default :
+					done = put(buf, QUOTE);
+
+					break;
+			}
+			if (!done) {
+				return false;
+			}
+			if (parts[top] == 4) {
+				parts[top] = 0;
+				++indexes[top];
+			} else {
+				++parts[top];
+			}
+		}
+
+		return true;
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/** Entry of encoded names cache, published with a single write */
+	private static final class NameBytes {
+		final byte[] bytes;
+		final String name;
+
+		NameBytes(String name, byte[] bytes) {
+			this.name  = name;
+			this.bytes = bytes;
+		}
+	}
+}    // ElementWriter
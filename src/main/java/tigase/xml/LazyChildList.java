@@ -0,0 +1,265 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>LazyChildList</code> - children list of an element which keeps raw
+ * source text of element content and parses it into child nodes on the first
+ * access to the list. Until then the element serializes its content directly
+ * from the source text.
+ * <p>
+ * The source text is forwarded exactly as received, so it is not normalized
+ * like content serialized from child nodes: white characters inside tags,
+ * comments and namespace prefixes are kept. Serialized form of an element
+ * therefore depends on whether its children have been accessed, elements
+ * must be compared with <code>equalsDeep()</code>, not by
+ * <code>toString()</code>.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+class LazyChildList
+				extends ChildList {
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final ElementFactory factory;
+	private final Map<String, String> namespaces;
+	private Element parent;
+	private boolean parsing = false;
+	private volatile char[] source;
+	private final SymbolTable symbols;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new <code>LazyChildList</code> instance.
+	 *
+	 * @param parent element owning the list
+	 * @param source raw content of the element, must not be empty
+	 * @param factory creating child elements
+	 * @param symbols used to resolve names
+	 * @param namespaces prefixes in scope of the element, not modified later
+	 */
+	LazyChildList(Element parent, char[] source, ElementFactory factory, SymbolTable symbols,
+			Map<String, String> namespaces) {
+		this.parent     = parent;
+		this.source     = source;
+		this.factory    = factory;
+		this.symbols    = symbols;
+		this.namespaces = namespaces;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	@Override
+	public boolean add(XMLNodeIfc e) {
+		parse();
+
+		return super.add(e);
+	}
+
+	@Override
+	public void add(int index, XMLNodeIfc element) {
+		parse();
+		super.add(index, element);
+	}
+
+	/**
+	 * Appends raw content to the given buffer if it has not been parsed yet.
+	 *
+	 * @param result buffer to append content to
+	 *
+	 * @return <code>true</code> if the content was appended
+	 */
+	boolean appendSource(StringBuilder result) {
+		char[] src = source;
+
+		if (src == null) {
+			return false;
+		}
+		result.append(src);
+
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		parse();
+		super.clear();
+	}
+
+	@Override
+	public Object clone() {
+		parse();
+
+		// Parsed copy is a plain list
+		ChildList result = new ChildList(size());
+
+		result.addAll(this);
+
+		return result;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		parse();
+
+		return super.contains(o);
+	}
+
+	/**
+	 * Creates a copy of the unparsed list for the given element clone.
+	 *
+	 * @return list sharing the source text or <code>null</code> if the content
+	 * has been parsed already
+	 */
+	LazyChildList copyFor(Element clone) {
+		char[] src = source;
+
+		return (src == null)
+				? null
+				: new LazyChildList(clone, src, factory, symbols, namespaces);
+	}
+
+	@Override
+	public void forEach(Consumer<? super XMLNodeIfc> action) {
+		parse();
+		super.forEach(action);
+	}
+
+	@Override
+	public XMLNodeIfc get(int index) {
+		parse();
+
+		return super.get(index);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		parse();
+
+		return super.indexOf(o);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		parse();
+
+		return super.lastIndexOf(o);
+	}
+
+	@Override
+	public XMLNodeIfc remove(int index) {
+		parse();
+
+		return super.remove(index);
+	}
+
+	@Override
+	public XMLNodeIfc set(int index, XMLNodeIfc element) {
+		parse();
+
+		return super.set(index, element);
+	}
+
+	@Override
+	public int size() {
+		parse();
+
+		return super.size();
+	}
+
+	@Override
+	public Object[] toArray() {
+		parse();
+
+		return super.toArray();
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	@Override
+	public boolean isEmpty() {
+
+		// Source is serialized as it is while kept, so the list is reported as
+		// not empty without parsing, even if the source holds comments only
+		return (source == null) && super.isEmpty();
+	}
+
+	/**
+	 * Returns raw content if it has not been parsed yet.
+	 *
+	 * @return raw content or <code>null</code>
+	 */
+	char[] getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns <code>true</code> if content has not been parsed yet.
+	 *
+	 * @return <code>true</code> if content is kept as raw text
+	 */
+	boolean isLazy() {
+		return source != null;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private void parse() {
+		if (source != null) {
+			synchronized (this) {
+				char[] src = source;
+
+				// Children are added to this list during parsing
+				if ((src != null) && !parsing) {
+					parsing = true;
+
+					DomBuilderHandler handler = new DomBuilderHandler(factory, symbols, parent, namespaces);
+					SimpleParser parser = SingletonFactory.getParserInstance();
+					char[] close = ("</" + parent.getName() + ">").toCharArray();
+
+					int mod = modCount;
+
+					parser.parse(handler, src, 0, src.length);
+					parser.parse(handler, close, 0, close.length);
+
+					// Parsing is not a modification, iterators opened before must work
+					modCount = mod;
+					parent   = null;
+					source   = null;
+				}
+			}
+		}
+	}
+}    // LazyChildList
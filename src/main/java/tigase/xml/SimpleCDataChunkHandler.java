@@ -0,0 +1,54 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+/**
+ * <code>SimpleCDataChunkHandler</code> is an extension of
+ * {@link SimpleHandler} for handlers which can process long character data
+ * incrementally, for example stream base64 encoded payload to a file.
+ * <p>
+ * Character data shorter than <code>SimpleParser.CDATA_CHUNK_SIZE</code> is
+ * delivered as usual with a single <code>elementCData</code> call. Once the
+ * text reaches this size the parser delivers it, including the remaining
+ * part, using <code>elementCDataChunk</code> calls instead, so parser keeps
+ * at most one chunk per connection. Chunks are never split inside an entity
+ * or a surrogate pair. The last chunk of the text is marked and may be empty.
+ * <code>SimpleParser.MAX_CDATA_SIZE</code> still limits total length of the
+ * text.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public interface SimpleCDataChunkHandler
+				extends SimpleHandler {
+	/**
+	 * Receives next part of long character data. The slice is valid only
+	 * during the call.
+	 *
+	 * @param chunk part of the character data
+	 * @param last <code>true</code> for the last chunk of the text
+	 */
+	void elementCDataChunk(CharSlice chunk, boolean last);
+}    // SimpleCDataChunkHandler
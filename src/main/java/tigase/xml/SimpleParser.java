@@ -28,6 +28,8 @@ import tigase.annotations.TODO;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.nio.ByteBuffer;
+
 import java.util.Arrays;
 
 //~--- classes ----------------------------------------------------------------
@@ -92,6 +94,13 @@ public class SimpleParser {
 		"tigase.xml.max_attribute_value_size";
 	public int MAX_CDATA_SIZE = 1024 * 1024;
 	public static final String MAX_CDATA_SIZE_PROP_KEY = "tigase.xml.max_cdata_size";
+
+	/**
+	 * Character data longer than this is delivered in chunks to handlers
+	 * implementing <code>SimpleCDataChunkHandler</code>.
+	 */
+	public int CDATA_CHUNK_SIZE = 64 * 1024;
+	public static final String CDATA_CHUNK_SIZE_PROP_KEY = "tigase.xml.cdata_chunk_size";
 	private static final char OPEN_BRACKET = '<';
 	private static final char CLOSE_BRACKET = '>';
 	private static final char QUESTION_MARK = '?';
@@ -114,6 +123,41 @@ public class SimpleParser {
 	};
 	private static final char[] ERR_NAME_CHARS = { OPEN_BRACKET, QUESTION_MARK, AMP };
 	private static final char[] IGNORE_CHARS = { '\0' };
+	private static final byte C_WHITE = 0x01;
+	private static final byte C_NAME_END = 0x02;
+	private static final byte C_ERR_NAME = 0x04;
+	private static final byte C_MARKUP = 0x08;
+	private static final byte C_INVALID = 0x10;
+	private static final byte C_SURROGATE = 0x20;
+
+	/**
+	 * Characters which stop bulk scanning of text: markup, entities and
+	 * everything requiring full validity check.
+	 */
+	private static final byte C_TEXT_STOP = C_MARKUP | C_INVALID | C_SURROGATE;
+
+	/**
+	 * Classes of all characters from the Basic Multilingual Plane, one array
+	 * load gives all properties of a character the state machine checks.
+	 */
+	private static final byte[] CHAR_TYPES = new byte[0x10000];
+
+	/**
+	 * Number of characters decoded from <em>UTF-8</em> input in one step before
+	 * they are passed to the parser state machine.
+	 */
+	private static final int UTF8_CHUNK_SIZE = 2048;
+
+	/**
+	 * Buffers for decoded characters, one per thread shared by all parsers, so
+	 * there is no decode buffer per connection.
+	 */
+	private static final ThreadLocal<char[]> UTF8_CHUNKS = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[UTF8_CHUNK_SIZE];
+		}
+	};
 
 	//~--- constant enums -------------------------------------------------------
 
@@ -128,7 +172,14 @@ public class SimpleParser {
 	protected static enum State {
 		START, OPEN_BRACKET, ELEMENT_NAME, END_ELEMENT_NAME, ATTRIB_NAME, END_OF_ATTR_NAME,
 		ATTRIB_VALUE_S, ATTRIB_VALUE_D, ELEMENT_CDATA, OTHER_XML, ERROR, CLOSE_ELEMENT,
-		ENTITY
+		ENTITY, SKIP
+	}
+
+	/**
+	 * Position inside content of an element which is skipped.
+	 */
+	protected static enum SkipState {
+		TEXT, OPEN_BRACKET, TAG, ATTRIB_VALUE_S, ATTRIB_VALUE_D, CLOSE_TAG, OTHER_XML
 	}
 
 	;
@@ -139,6 +190,25 @@ public class SimpleParser {
 
 		// Arrays.sort(WHITE_CHARS);
 		Arrays.sort(IGNORE_CHARS);
+		for (int chr = 0; chr < 0x20; chr++) {
+			CHAR_TYPES[chr] = C_INVALID;
+		}
+		CHAR_TYPES[0xFFFE] = C_INVALID;
+		CHAR_TYPES[0xFFFF] = C_INVALID;
+		for (int chr = Character.MIN_SURROGATE; chr <= Character.MAX_SURROGATE; chr++) {
+			CHAR_TYPES[chr] = C_SURROGATE;
+		}
+		for (char chr : WHITE_CHARS) {
+			CHAR_TYPES[chr] = C_WHITE;
+		}
+		for (char chr : END_NAME_CHARS) {
+			CHAR_TYPES[chr] |= C_NAME_END;
+		}
+		for (char chr : ERR_NAME_CHARS) {
+			CHAR_TYPES[chr] |= C_ERR_NAME;
+		}
+		CHAR_TYPES[OPEN_BRACKET] |= C_MARKUP;
+		CHAR_TYPES[AMP] |= C_MARKUP;
 	}
 
 	public SimpleParser() {
@@ -152,6 +222,7 @@ public class SimpleParser {
 		MAX_ATTRIBUTE_VALUE_SIZE =
 			Integer.getInteger(MAX_ATTRIBUTE_VALUE_SIZE_PROP_KEY, MAX_ATTRIBUTE_VALUE_SIZE);
 		MAX_CDATA_SIZE = Integer.getInteger(MAX_CDATA_SIZE_PROP_KEY, MAX_CDATA_SIZE);
+		CDATA_CHUNK_SIZE = Integer.getInteger(CDATA_CHUNK_SIZE_PROP_KEY, CDATA_CHUNK_SIZE);
 	}
 
 	//~--- methods --------------------------------------------------------------
@@ -174,8 +245,86 @@ public class SimpleParser {
 			parser_state = new ParserState();
 		}    // end of if (parser_state == null)
 
+		if (parse(handler, parser_state, data, off, len) >= 0) {
+			handler.saveParserState(parser_state);
+		}
+	}
+
+	/**
+	 * Parses <em>UTF-8</em> encoded data directly from the given buffer, so there
+	 * is no need to run a <code>CharsetDecoder</code> before calling the parser.
+	 * Bytes are decoded in small chunks to a per thread buffer which is then
+	 * parsed, the state machine itself works on characters.
+	 * Both heap and direct buffers are supported. All remaining bytes are
+	 * consumed, buffer position is set to its limit on return. Multi-byte
+	 * sequences split between buffers are kept in the parser state and completed
+	 * with the next call.
+	 *
+	 * @param handler receiving parser events
+	 * @param data buffer with <em>UTF-8</em> encoded data
+	 */
+	public final void parse(SimpleHandler handler, ByteBuffer data) {
+		ParserState parser_state = (ParserState) handler.restoreParserState();
+
+		if (parser_state == null) {
+			parser_state = new ParserState();
+		}    // end of if (parser_state == null)
+
+		char[] chars = UTF8_CHUNKS.get();
+
+		// Buffer is taken while in use, parsing started from a handler callback
+		// gets its own one
+		UTF8_CHUNKS.remove();
+		try {
+			while (data.hasRemaining()) {
+				int count = decodeUTF8(parser_state, data, chars);
+
+				if (parse(handler, parser_state, chars, 0, count) < 0) {
+					data.position(data.limit());
+
+					return;
+				}
+				if (parser_state.utf8_malformed) {
+					parser_state.state = State.ERROR;
+					parser_state.errorMessage = "Malformed UTF-8 sequence in XML stream";
+					handler.error(parser_state.errorMessage);
+					data.position(data.limit());
+
+					return;
+				}
+			}
+		} finally {
+			UTF8_CHUNKS.set(chars);
+		}
+
+		handler.saveParserState(parser_state);
+	}
+
+	/**
+	 * Runs parser state machine over characters from <code>data</code> starting
+	 * at <code>off</code> up to <code>len</code> index. Processing stops earlier,
+	 * just after an event, if the handler sets <code>paused</code> flag in the
+	 * parser state.
+	 *
+	 * @return index of the first character which was not processed or
+	 * <code>-1</code> if parsing error was reported to the handler and parser
+	 * state should not be saved.
+	 */
+	int parse(SimpleHandler handler, ParserState parser_state, char[] data, int off,
+			int len) {
+		SimpleSliceHandler slice_handler = (handler instanceof SimpleSliceHandler)
+				? (SimpleSliceHandler) handler
+				: null;
+		SimpleCDataChunkHandler chunk_handler = (handler instanceof SimpleCDataChunkHandler)
+				? (SimpleCDataChunkHandler) handler
+				: null;
+
+		// Stream offset of data[0]
+		long base = parser_state.position - off;
+
 		for (int index = off; index < len; index++) {
 			char chr = data[index];
+			int chr_type = CHAR_TYPES[chr];
 
 			// Only one character to ignore right now, let's do it more efficiently
 //    if (ignore(chr)) {
@@ -196,6 +345,7 @@ public class SimpleParser {
 					if (chr == OPEN_BRACKET) {
 						parser_state.state = State.OPEN_BRACKET;
 						parser_state.slash_found = false;
+						parser_state.tag_start = base + index;
 					}    // end of if (chr == OPEN_BRACKET)
 
 					// Skip everything up to open bracket
@@ -206,21 +356,20 @@ public class SimpleParser {
 						case QUESTION_MARK :
 						case EXCLAMATION_MARK :
 							parser_state.state = State.OTHER_XML;
-							parser_state.element_cdata = new StringBuilder(100);
-							parser_state.element_cdata.append(chr);
+							parser_state.element_cdata.mark(index);
 
 							break;
 
 						case SLASH :
 							parser_state.state = State.CLOSE_ELEMENT;
-							parser_state.element_name = new StringBuilder(10);
 							parser_state.slash_found = true;
 
 							break;
 
 						default :
-							if (Arrays.binarySearch(WHITE_CHARS, chr) < 0) {
-								if ((chr == ERR_NAME_CHARS[0]) || (chr == ERR_NAME_CHARS[1]) || (chr == ERR_NAME_CHARS[2])) {
+							// Only new line characters are skipped before element name
+							if ((chr != LF) && (chr != CR)) {
+								if ((chr_type & C_ERR_NAME) != 0) {
 									parser_state.state = State.ERROR;
 									parser_state.errorMessage = "Not allowed character in start element name: " + chr;
 
@@ -228,8 +377,7 @@ public class SimpleParser {
 								}    // end of if ()
 								
 								parser_state.state = State.ELEMENT_NAME;
-								parser_state.element_name = new StringBuilder(10);
-								parser_state.element_name.append(chr);
+								parser_state.element_name.mark(index);
 							}    // end of if ()
 
 							break;
@@ -238,54 +386,53 @@ public class SimpleParser {
 					break;
 
 				case ELEMENT_NAME :
-					if (isWhite(chr)) {
-						parser_state.state = State.END_ELEMENT_NAME;
+					if ((chr_type & C_NAME_END) != 0) {
+						if ((chr_type & C_WHITE) != 0) {
+							parser_state.element_name.finish(index);
+							parser_state.state = State.END_ELEMENT_NAME;
 
-						break;
-					}        // end of if ()
+							break;
+						}        // end of if ()
 
-					if (chr == SLASH) {
-						parser_state.slash_found = true;
+						if (chr == SLASH) {
+							parser_state.element_name.suspend(data, index);
+							parser_state.slash_found = true;
 
-						break;
-					}        // end of if (chr == SLASH)
+							break;
+						}        // end of if (chr == SLASH)
 
-					if (chr == CLOSE_BRACKET) {
+						// CLOSE_BRACKET
+						parser_state.element_name.finish(index);
 						parser_state.state = State.ELEMENT_CDATA;
-						handler.startElement(parser_state.element_name, null, null);
-
-						if (parser_state.slash_found) {
-
-							// parser_state.state = State.START;
-							handler.endElement(parser_state.element_name);
-						}
-
-						parser_state.element_name = null;
+						parser_state.tag_end = base + index + 1;
+						startElement(handler, slice_handler, parser_state, data);
 
 						break;
-					}    // end of if ()
+					}    // end of if ((chr_type & C_NAME_END) != 0)
 
-					if ((chr == ERR_NAME_CHARS[0]) || (chr == ERR_NAME_CHARS[1]) || (chr == ERR_NAME_CHARS[2])) {
+					if ((chr_type & C_ERR_NAME) != 0) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Not allowed character in start element name: " + chr
 								+ "\nExisting characters in start element name: "
-									+ parser_state.element_name.toString();
+									+ parser_state.element_name.toString(data, index);
 
 						break;
 					}    // end of if ()
 
-					parser_state.element_name.append(chr);
+					parser_state.element_name.mark(index);
 
-					if (parser_state.element_name.length() > MAX_ELEMENT_NAME_SIZE) {
+					if (parser_state.element_name.length(index + 1) > MAX_ELEMENT_NAME_SIZE) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Max element name size exceeded: " + MAX_ELEMENT_NAME_SIZE
-								+ "\nreceived: " + parser_state.element_name.toString();
+								+ "\nreceived: " + parser_state.element_name.toString(data, index + 1);
 					}
 
 					break;
 
 				case CLOSE_ELEMENT :
-					if (isWhite(chr)) {
+					if ((chr_type & C_WHITE) != 0) {
+						parser_state.element_name.suspend(data, index);
+
 						break;
 					}    // end of if ()
 
@@ -293,40 +440,42 @@ public class SimpleParser {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Not allowed character in close element name: " + chr
 								+ "\nExisting characters in close element name: "
-									+ parser_state.element_name.toString();
+									+ parser_state.element_name.toString(data, index);
 
 						break;
 					}    // end of if (chr == SLASH)
 
 					if (chr == CLOSE_BRACKET) {
+						parser_state.element_name.finish(index);
 						parser_state.state = State.ELEMENT_CDATA;
-						if (!handler.endElement(parser_state.element_name)) {
+						parser_state.tag_end = base + index + 1;
+						if (!endElement(handler, slice_handler, parser_state, data)) {
 							parser_state.state = State.ERROR;
-							parser_state.errorMessage = "Malformed XML: element close found without open for this element: " + parser_state.element_name;
+							parser_state.errorMessage = "Malformed XML: element close found without open for this element: "
+									+ parser_state.element_name.toString(data, index);
 							break;
 						}
 
-						// parser_state = new ParserState();
-						parser_state.element_name = null;
+						parser_state.element_name.reset();
 
 						break;
 					}    // end of if ()
 
-					if ((chr == ERR_NAME_CHARS[0]) || (chr == ERR_NAME_CHARS[1]) || (chr == ERR_NAME_CHARS[2])) {
+					if ((chr_type & C_ERR_NAME) != 0) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Not allowed character in close element name: " + chr
 								+ "\nExisting characters in close element name: "
-									+ parser_state.element_name.toString();
+									+ parser_state.element_name.toString(data, index);
 
 						break;
 					}    // end of if ()
 
-					parser_state.element_name.append(chr);
+					parser_state.element_name.mark(index);
 
-					if (parser_state.element_name.length() > MAX_ELEMENT_NAME_SIZE) {
+					if (parser_state.element_name.length(index + 1) > MAX_ELEMENT_NAME_SIZE) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Max element name size exceeded: " + MAX_ELEMENT_NAME_SIZE
-								+ "\nreceived: " + parser_state.element_name.toString();
+								+ "\nreceived: " + parser_state.element_name.toString(data, index + 1);
 					}
 
 					break;
@@ -340,24 +489,13 @@ public class SimpleParser {
 
 					if (chr == CLOSE_BRACKET) {
 						parser_state.state = State.ELEMENT_CDATA;
-						handler.startElement(parser_state.element_name, parser_state.attrib_names,
-								parser_state.attrib_values);
-						parser_state.attrib_names = null;
-						parser_state.attrib_values = null;
-						parser_state.current_attr = -1;
-
-						if (parser_state.slash_found) {
-
-							// parser_state.state = State.START;
-							handler.endElement(parser_state.element_name);
-						}
-
-						parser_state.element_name = null;
+						parser_state.tag_end = base + index + 1;
+						startElement(handler, slice_handler, parser_state, data);
 
 						break;
 					}      // end of if ()
 
-					if ( !isWhite(chr)) {
+					if ((chr_type & C_WHITE) == 0) {
 						parser_state.state = State.ATTRIB_NAME;
 
 						if (parser_state.attrib_names == null) {
@@ -369,7 +507,7 @@ public class SimpleParser {
 									parser_state.state = State.ERROR;
 									parser_state.errorMessage = "Attributes nuber limit exceeded: "
 										+ ATTRIBUTES_NUMBER_LIMIT
-										+ "\nreceived: " + parser_state.element_name.toString();
+										+ "\nreceived: " + parser_state.element_name.toString(data, index);
 									break;
 								} else {
 									int new_size = parser_state.attrib_names.length + MAX_ATTRIBS_NUMBER;
@@ -380,8 +518,7 @@ public class SimpleParser {
 							}
 						}    // end of else
 
-						parser_state.attrib_names[++parser_state.current_attr] = new StringBuilder(8);
-						parser_state.attrib_names[parser_state.current_attr].append(chr);
+						parser_state.attrib_names[++parser_state.current_attr].mark(index);
 
 						break;
 					}      // end of if ()
@@ -390,29 +527,30 @@ public class SimpleParser {
 					break;
 
 				case ATTRIB_NAME :
-					if (isWhite(chr) || (chr == EQUALS)) {
+					if (((chr_type & C_WHITE) != 0) || (chr == EQUALS)) {
+						parser_state.attrib_names[parser_state.current_attr].finish(index);
 						parser_state.state = State.END_OF_ATTR_NAME;
 
 						break;
 					}    // end of if ()
 
-					if ((chr == ERR_NAME_CHARS[0]) || (chr == ERR_NAME_CHARS[1]) || (chr == ERR_NAME_CHARS[2])) {
+					if ((chr_type & C_ERR_NAME) != 0) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Not allowed character in element attribute name: " + chr
 								+ "\nExisting characters in element attribute name: "
-									+ parser_state.attrib_names[parser_state.current_attr].toString();
+									+ parser_state.attrib_names[parser_state.current_attr].toString(data, index);
 
 						break;
 					}    // end of if ()
 
-					parser_state.attrib_names[parser_state.current_attr].append(chr);
+					parser_state.attrib_names[parser_state.current_attr].mark(index);
 
-					if (parser_state.attrib_names[parser_state.current_attr].length()
+					if (parser_state.attrib_names[parser_state.current_attr].length(index + 1)
 							> MAX_ATTRIBUTE_NAME_SIZE) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Max attribute name size exceeded: "
 								+ MAX_ATTRIBUTE_NAME_SIZE + "\nreceived: "
-									+ parser_state.attrib_names[parser_state.current_attr].toString();
+									+ parser_state.attrib_names[parser_state.current_attr].toString(data, index + 1);
 					}
 
 					break;
@@ -420,25 +558,30 @@ public class SimpleParser {
 				case END_OF_ATTR_NAME :
 					if (chr == SINGLE_QUOTE) {
 						parser_state.state = State.ATTRIB_VALUE_S;
-						parser_state.attrib_values[parser_state.current_attr] = new StringBuilder(64);
 					}    // end of if (chr == SINGLE_QUOTE || chr == DOUBLE_QUOTE)
 
 					if (chr == DOUBLE_QUOTE) {
 						parser_state.state = State.ATTRIB_VALUE_D;
-						parser_state.attrib_values[parser_state.current_attr] = new StringBuilder(64);
 					}    // end of if (chr == SINGLE_QUOTE || chr == DOUBLE_QUOTE)
 
 					// Skip white characters and actually everything except quotes
 					break;
 
 				case ATTRIB_VALUE_S :
-					if (chr == SINGLE_QUOTE) {
+				case ATTRIB_VALUE_D :
+					char quote = (parser_state.state == State.ATTRIB_VALUE_S)
+							? SINGLE_QUOTE
+							: DOUBLE_QUOTE;
+					Token value = parser_state.attrib_values[parser_state.current_attr];
+
+					if (chr == quote) {
+						value.finish(index);
 						parser_state.state = State.END_ELEMENT_NAME;
 
 						break;
 					}    // end of if (chr == SINGLE_QUOTE || chr == DOUBLE_QUOTE)
 
-					parser_state.attrib_values[parser_state.current_attr].append(chr);
+					value.mark(index);
 					switch (chr) {
 						case '&':
 							parser_state.parentState = parser_state.state;
@@ -449,53 +592,24 @@ public class SimpleParser {
 							parser_state.state = State.ERROR;
 							parser_state.errorMessage = "Not allowed character in element attribute value: " + chr
 									+ "\nExisting characters in element attribute value: "
-									+ parser_state.attrib_values[parser_state.current_attr].toString();
+									+ value.toString(data, index + 1);
 							break;
 						default:
 							break;
 					}
 
-					if (parser_state.attrib_values[parser_state.current_attr].length()
-							> MAX_ATTRIBUTE_VALUE_SIZE) {
+					if (value.length(index + 1) > MAX_ATTRIBUTE_VALUE_SIZE) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Max attribute value size exceeded: "
 								+ MAX_ATTRIBUTE_VALUE_SIZE + "\nreceived: "
-									+ parser_state.attrib_values[parser_state.current_attr].toString();
+									+ value.toString(data, index + 1);
 					}
 
-					break;
-
-				case ATTRIB_VALUE_D :
-					if (chr == DOUBLE_QUOTE) {
-						parser_state.state = State.END_ELEMENT_NAME;
-
-						break;
-					}    // end of if (chr == SINGLE_QUOTE || chr == DOUBLE_QUOTE)
-
-					parser_state.attrib_values[parser_state.current_attr].append(chr);
-					
-					switch (chr) {
-						case '&':
-							parser_state.parentState = parser_state.state;
-							parser_state.state = State.ENTITY;
-							parser_state.entityType = EntityType.UNKNOWN;
-							break;
-						case '<':
-							parser_state.state = State.ERROR;
-							parser_state.errorMessage = "Not allowed character in element attribute value: " + chr
-									+ "\nExisting characters in element attribute value: "
-									+ parser_state.attrib_values[parser_state.current_attr].toString();
-							break;
-						default:
-							break;
-					}
-
-					if (parser_state.attrib_values[parser_state.current_attr].length()
-							> MAX_ATTRIBUTE_VALUE_SIZE) {
-						parser_state.state = State.ERROR;
-						parser_state.errorMessage = "Max attribute value size exceeded: "
-								+ MAX_ATTRIBUTE_VALUE_SIZE + "\nreceived: "
-									+ parser_state.attrib_values[parser_state.current_attr].toString();
+					if ((parser_state.state == State.ATTRIB_VALUE_S)
+							|| (parser_state.state == State.ATTRIB_VALUE_D)) {
+						index = scanText(parser_state, data, index + 1,
+								Math.min(len, index + 1 + MAX_ATTRIBUTE_VALUE_SIZE - value.length(index + 1)),
+								quote);
 					}
 
 					break;
@@ -504,35 +618,51 @@ public class SimpleParser {
 					if (chr == OPEN_BRACKET) {
 						parser_state.state = State.OPEN_BRACKET;
 						parser_state.slash_found = false;
-
-						if (parser_state.element_cdata != null) {
-							handler.elementCData(parser_state.element_cdata);
-							parser_state.element_cdata = null;
-						}    // end of if (parser_state.element_cdata != null)
+						parser_state.tag_start = base + index;
+
+						if (parser_state.cdata_emitted > 0) {
+							parser_state.element_cdata.finish(index);
+							elementCDataChunk(chunk_handler, parser_state, data, true);
+						} else if (!parser_state.element_cdata.isEmpty()) {
+							parser_state.element_cdata.finish(index);
+							if (!keepAlive(parser_state, data, index)) {
+								elementCData(handler, slice_handler, parser_state, data);
+							}
+						}    // end of if (!parser_state.element_cdata.isEmpty())
 
 						break;
 					} else {
-						if (parser_state.element_cdata == null) {
-
-//            // Skip leading white characters
-//            if (Arrays.binarySearch(WHITE_CHARS, chr) < 0) {
-							parser_state.element_cdata = new StringBuilder(100);
-
-//            parser_state.element_cdata.append(chr);
-//            }// end of if (Arrays.binarySearch(WHITE_CHARS, chr) < 0)
-						}    // end of if (parser_state.element_cdata == null) else
-						
-						parser_state.element_cdata.append(chr);
+						parser_state.element_cdata.mark(index);
 						if (chr == '&') {
 							parser_state.parentState = parser_state.state;
 							parser_state.state = State.ENTITY;
 							parser_state.entityType = EntityType.UNKNOWN;
 						}
 						
-						if (parser_state.element_cdata.length() > MAX_CDATA_SIZE) {
+						int cdata_len = parser_state.cdata_emitted
+								+ parser_state.element_cdata.length(index + 1);
+
+						if (cdata_len > MAX_CDATA_SIZE) {
 							parser_state.state = State.ERROR;
 							parser_state.errorMessage = "Max cdata size exceeded: " + MAX_CDATA_SIZE
-									+ "\nreceived: " + parser_state.element_cdata.toString();
+									+ "\nreceived: " + parser_state.element_cdata.toString(data, index + 1);
+						}
+
+						if (parser_state.state == State.ELEMENT_CDATA) {
+							int end = Math.min(len, index + 1 + MAX_CDATA_SIZE - cdata_len);
+
+							if (chunk_handler != null) {
+								end = Math.min(end, index + 1 + CDATA_CHUNK_SIZE
+										- parser_state.element_cdata.length(index + 1));
+							}
+							index = scanText(parser_state, data, index + 1, end, OPEN_BRACKET);
+
+							// Chunk is never split inside an entity or a surrogate pair
+							if ((chunk_handler != null) && !parser_state.highSurrogate
+									&& (parser_state.element_cdata.length(index + 1) >= CDATA_CHUNK_SIZE)) {
+								parser_state.element_cdata.finish(index + 1);
+								elementCDataChunk(chunk_handler, parser_state, data, false);
+							}
 						}
 					}
 
@@ -593,10 +723,15 @@ public class SimpleParser {
 						switch (parser_state.parentState) {
 							case ATTRIB_VALUE_D:
 							case ATTRIB_VALUE_S:
-								parser_state.attrib_values[parser_state.current_attr].append(chr);
+								parser_state.attrib_values[parser_state.current_attr].mark(index);
 								break;
 							case ELEMENT_CDATA:
-								parser_state.element_cdata.append(chr);
+								parser_state.element_cdata.mark(index);
+								break;
+							case SKIP:
+								if (parser_state.skip_capture) {
+									parser_state.element_cdata.mark(index);
+								}
 								break;
 						}
 					} else {
@@ -607,32 +742,35 @@ public class SimpleParser {
 					
 				case OTHER_XML :
 					if (chr == CLOSE_BRACKET) {
+						parser_state.element_cdata.finish(index);
 						parser_state.state = State.START;
-						handler.otherXML(parser_state.element_cdata);
-						parser_state.element_cdata = null;
+						otherXML(handler, slice_handler, parser_state, data);
 
 						break;
 					}    // end of if (chr == CLOSE_BRACKET)
 
-					if (parser_state.element_cdata == null) {
-						parser_state.element_cdata = new StringBuilder(100);
-					}    // end of if (parser_state.element_cdata == null) else
-
-					parser_state.element_cdata.append(chr);
+					parser_state.element_cdata.mark(index);
 
-					if (parser_state.element_cdata.length() > MAX_CDATA_SIZE) {
+					if (parser_state.element_cdata.length(index + 1) > MAX_CDATA_SIZE) {
 						parser_state.state = State.ERROR;
 						parser_state.errorMessage = "Max cdata size exceeded: " + MAX_CDATA_SIZE
-								+ "\nreceived: " + parser_state.element_cdata.toString();
+								+ "\nreceived: " + parser_state.element_cdata.toString(data, index + 1);
 					}
 
 					break;
 
+				case SKIP :
+					index = skip(handler, slice_handler, parser_state, data, index, len, chr, chr_type, base);
+
+					break;
+
 				case ERROR :
+
+					// Tokens must not point to data buffer the caller is about to release
+					parser_state.reset();
 					handler.error(parser_state.errorMessage);
-					parser_state = null;
 
-					return;
+					return -1;
 
 				// break;
 				default :
@@ -640,74 +778,533 @@ public class SimpleParser {
 
 					break;
 			}    // end of switch (state)
+
+			if (parser_state.paused) {
+				parser_state.paused = false;
+				parser_state.suspend(data, index + 1);
+				parser_state.position = base + index + 1;
+
+				return index + 1;
+			}
 		}      // end of for ()
 
-		handler.saveParserState(parser_state);
+		// Keep-alives are not carried over until the next tag
+		if (parser_state.state == State.ELEMENT_CDATA) {
+			keepAlive(parser_state, data, len);
+		}
+
+		// Data buffer is about to be released by the caller, all tokens
+		// still referencing it must be copied to the parser state
+		parser_state.suspend(data, len);
+		parser_state.position = base + len;
+
+		return len;
 	}
 
-//private boolean ignore(char chr) {
-//  return Arrays.binarySearch(IGNORE_CHARS, chr) >= 0;
-//}
-	private StringBuilder[] initArray(int size) {
-		StringBuilder[] array = new StringBuilder[size];
+	private void startElement(SimpleHandler handler, SimpleSliceHandler slice_handler,
+			ParserState parser_state, char[] data) {
+		int attribs = parser_state.current_attr + 1;
+
+		if (slice_handler != null) {
+			CharSlice name = parser_state.element_name.slice(data, parser_state.name_slice);
+			CharSlice[] names = null;
+			CharSlice[] values = null;
+
+			if (attribs > 0) {
+				if ((parser_state.attrib_name_slices == null)
+						|| (parser_state.attrib_name_slices.length < parser_state.attrib_names.length)) {
+					parser_state.attrib_name_slices = initSlices(parser_state.attrib_names.length);
+					parser_state.attrib_value_slices = initSlices(parser_state.attrib_names.length);
+				}
+				names = parser_state.attrib_name_slices;
+				values = parser_state.attrib_value_slices;
+				for (int i = 0; i < attribs; i++) {
+					if (names[i] == null) {
+						names[i] = new CharSlice();
+						values[i] = new CharSlice();
+					}
+					parser_state.attrib_names[i].slice(data, names[i]);
+					parser_state.attrib_values[i].slice(data, values[i]);
+				}
+				if (attribs < names.length) {
+					names[attribs] = null;
+					values[attribs] = null;
+				}
+			}
+			slice_handler.startElement(name, names, values);
+			if (parser_state.slash_found) {
 
-		Arrays.fill(array, null);
+				// parser_state.state = State.START;
+				slice_handler.endElement(name);
+			}
+		} else {
+			StringBuilder name = parser_state.element_name.toStringBuilder(data);
+			StringBuilder[] names = null;
+			StringBuilder[] values = null;
+
+			if (attribs > 0) {
+				names = new StringBuilder[parser_state.attrib_names.length];
+				values = new StringBuilder[parser_state.attrib_names.length];
+				for (int i = 0; i < attribs; i++) {
+					names[i] = parser_state.attrib_names[i].toStringBuilder(data);
+					values[i] = parser_state.attrib_values[i].toStringBuilder(data);
+				}
+			}
+			handler.startElement(name, names, values);
+			if (parser_state.slash_found) {
 
-		return array;
+				// parser_state.state = State.START;
+				handler.endElement(name);
+			}
+		}
+		if (!parser_state.slash_found && (handler instanceof SimpleSkipHandler)) {
+			switch (((SimpleSkipHandler) handler).contentDirective()) {
+				case CAPTURE :
+					parser_state.skip = true;
+					parser_state.skip_notify = true;
+					parser_state.skip_capture = true;
+
+					break;
+
+				case SKIP :
+					parser_state.skip = true;
+					parser_state.skip_notify = true;
+
+					break;
+
+				default :
+					break;
+			}
+		}
+		if (!parser_state.slash_found) {
+			++parser_state.depth;
+		}
+		if (parser_state.skip && !parser_state.slash_found) {
+
+			// Element name is kept for the end element event
+			parser_state.startSkip(parser_state.element_name.slice(data, parser_state.name_slice));
+		} else {
+			parser_state.element_name.reset();
+		}
+		parser_state.skip = false;
+		for (int i = 0; i < attribs; i++) {
+			parser_state.attrib_names[i].reset();
+			parser_state.attrib_values[i].reset();
+		}
+		parser_state.current_attr = -1;
 	}
 
-	//~--- get methods ----------------------------------------------------------
+	/**
+	 * Processes a character of skipped element content. Only nesting depth,
+	 * quotes, entities and character validity are tracked, no events are
+	 * delivered until the end of skipped element.
+	 *
+	 * @return index of the last character consumed
+	 */
+	private int skip(SimpleHandler handler, SimpleSliceHandler slice_handler,
+			ParserState parser_state, char[] data, int index, int len, char chr, int chr_type,
+			long base) {
+		int end = len;
 
-	private boolean isWhite(char chr) {
+		if (parser_state.skip_capture) {
+			parser_state.element_cdata.mark(index);
 
-		// In most cases the white character is just a space, in such a case
-		// below loop would be faster than a binary search
-		for (char c : WHITE_CHARS) {
-			if (chr == c) {
-				return true;
+			int captured = parser_state.element_cdata.length(index + 1);
+
+			if (captured > MAX_CDATA_SIZE) {
+				parser_state.state = State.ERROR;
+				parser_state.errorMessage = "Max cdata size exceeded: " + MAX_CDATA_SIZE;
+
+				return index;
 			}
+
+			// Text is not scanned beyond the limit, so exceeding it is found on the next character
+			end = Math.min(len, index + 1 + MAX_CDATA_SIZE - captured);
 		}
+		switch (parser_state.skip_state) {
+			case TEXT :
+				if (chr == OPEN_BRACKET) {
+					parser_state.skip_state = SkipState.OPEN_BRACKET;
+					parser_state.tag_start = base + index;
+				} else if (chr == AMP) {
+					parser_state.parentState = State.SKIP;
+					parser_state.state = State.ENTITY;
+					parser_state.entityType = EntityType.UNKNOWN;
+				} else {
+					return scanText(parser_state, data, index + 1, end, OPEN_BRACKET);
+				}
+
+				break;
+
+			case OPEN_BRACKET :
+				if (chr == SLASH) {
+					parser_state.skip_state = SkipState.CLOSE_TAG;
+					parser_state.skip_in_name = true;
+					parser_state.skip_match = 0;
+				} else if ((chr == QUESTION_MARK) || (chr == EXCLAMATION_MARK)) {
+					parser_state.skip_state = SkipState.OTHER_XML;
+				} else if ((chr_type & C_ERR_NAME) != 0) {
+					parser_state.state = State.ERROR;
+					parser_state.errorMessage = "Not allowed character in start element name: " + chr;
+				} else {
+					parser_state.skip_state = SkipState.TAG;
+					parser_state.skip_slash = false;
+					parser_state.skip_in_name = true;
+					parser_state.skip_name_start = parser_state.skip_names_len;
+					if ((chr_type & C_NAME_END) == 0) {
+						parser_state.appendSkipName(chr);
+					}
+				}
 
-		return false;
+				break;
+
+			case TAG :
+				if (parser_state.skip_in_name) {
+					if ((chr_type & C_NAME_END) == 0) {
+						parser_state.appendSkipName(chr);
+						if (parser_state.skip_names_len - parser_state.skip_name_start > MAX_ELEMENT_NAME_SIZE) {
+							parser_state.state = State.ERROR;
+							parser_state.errorMessage = "Max element name size exceeded: " + MAX_ELEMENT_NAME_SIZE;
+
+							break;
+						}
+					} else if (((chr != LF) && (chr != CR))
+							|| (parser_state.skip_names_len > parser_state.skip_name_start)) {
+
+						// Only new line characters are skipped before element name
+						parser_state.skip_in_name = false;
+					}
+				}
+				if (chr == CLOSE_BRACKET) {
+					if (parser_state.skip_slash) {
+						parser_state.skip_names_len = parser_state.skip_name_start;
+					} else {
+						parser_state.openSkipName(parser_state.skip_depth++);
+					}
+					parser_state.skip_state = SkipState.TEXT;
+				} else if (chr == SINGLE_QUOTE) {
+					parser_state.skip_state = SkipState.ATTRIB_VALUE_S;
+				} else if (chr == DOUBLE_QUOTE) {
+					parser_state.skip_state = SkipState.ATTRIB_VALUE_D;
+				} else if ((chr_type & C_ERR_NAME) != 0) {
+					parser_state.state = State.ERROR;
+					parser_state.errorMessage = "Not allowed character in element: " + chr;
+				}
+				parser_state.skip_slash = (chr == SLASH);
+
+				break;
+
+			case ATTRIB_VALUE_S :
+			case ATTRIB_VALUE_D :
+				char quote = (parser_state.skip_state == SkipState.ATTRIB_VALUE_S)
+						? SINGLE_QUOTE
+						: DOUBLE_QUOTE;
+
+				if (chr == quote) {
+					parser_state.skip_state = SkipState.TAG;
+				} else if (chr == OPEN_BRACKET) {
+					parser_state.state = State.ERROR;
+					parser_state.errorMessage = "Not allowed character in element attribute value: " + chr;
+				} else if (chr == AMP) {
+					parser_state.parentState = State.SKIP;
+					parser_state.state = State.ENTITY;
+					parser_state.entityType = EntityType.UNKNOWN;
+				} else {
+					return scanText(parser_state, data, index + 1, end, quote);
+				}
+
+				break;
+
+			case CLOSE_TAG :
+				if (chr == CLOSE_BRACKET) {
+					if (!parser_state.closeSkipName(parser_state.skip_depth)) {
+						parser_state.state = State.ERROR;
+						parser_state.errorMessage = "Malformed XML: close tag does not match open element "
+								+ "in skipped content";
+
+						break;
+					}
+					if (--parser_state.skip_depth == 0) {
+						parser_state.state = State.ELEMENT_CDATA;
+						parser_state.tag_end = base + index + 1;
+						if (parser_state.skip_notify) {
+							CharSlice content = null;
+
+							if (parser_state.skip_capture) {
+								parser_state.element_cdata.finish(index + 1);
+								content = parser_state.element_cdata.slice(data, parser_state.cdata_slice);
+
+								// Closing tag is not a part of the content
+								content.set(content.array(), content.offset(),
+										content.length() - (int) (parser_state.tag_end - parser_state.tag_start));
+							}
+							((SimpleSkipHandler) handler).skippedContent(parser_state.tag_start -
+									parser_state.skip_start, content);
+							if (parser_state.skip_capture) {
+								parser_state.element_cdata.reset();
+							}
+							parser_state.skip_capture = false;
+							parser_state.skip_notify = false;
+						}
+						endElement(handler, slice_handler, parser_state, data);
+						parser_state.element_name.reset();
+					} else {
+						parser_state.skip_state = SkipState.TEXT;
+					}
+				} else if ((chr_type & C_ERR_NAME) != 0) {
+					parser_state.state = State.ERROR;
+					parser_state.errorMessage = "Not allowed character in close element name: " + chr;
+				} else if ((chr_type & C_WHITE) != 0) {
+					parser_state.skip_in_name = false;
+				} else {
+					parser_state.matchSkipName(chr, parser_state.skip_depth);
+				}
+
+				break;
+
+			case OTHER_XML :
+				if (chr == CLOSE_BRACKET) {
+					parser_state.skip_state = SkipState.TEXT;
+				}
+
+				break;
+		}
+
+		return index;
+	}
+
+	private boolean endElement(SimpleHandler handler, SimpleSliceHandler slice_handler,
+			ParserState parser_state, char[] data) {
+		if (parser_state.depth > 0) {
+			--parser_state.depth;
+		}
+		if (slice_handler != null) {
+			return slice_handler.endElement(parser_state.element_name.slice(data,
+					parser_state.name_slice));
+		} else {
+			return handler.endElement(parser_state.element_name.toStringBuilder(data));
+		}
+	}
+
+	/**
+	 * Drops pending character data found outside of elements, or directly
+	 * inside elements at <code>keepalive_depth</code>, if it consists of white
+	 * characters only. Such data is counted as a keep-alive and no event is
+	 * delivered for it.
+	 *
+	 * @return <code>true</code> if character data was dropped
+	 */
+	private static boolean keepAlive(ParserState parser_state, char[] data, int limit) {
+		Token cdata = parser_state.element_cdata;
+
+		if ((parser_state.depth > parser_state.keepalive_depth) || (parser_state.cdata_emitted > 0)
+				|| cdata.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < cdata.carry_len; i++) {
+			if ((CHAR_TYPES[cdata.carry[i]] & C_WHITE) == 0) {
+				return false;
+			}
+		}
+		if (cdata.start >= 0) {
+			int end = (cdata.end < 0)
+					? limit
+					: cdata.end;
+
+			for (int i = cdata.start; i < end; i++) {
+				if ((CHAR_TYPES[data[i]] & C_WHITE) == 0) {
+					return false;
+				}
+			}
+		}
+		++parser_state.keepalives;
+		cdata.reset();
+
+		return true;
+	}
+
+	private void elementCData(SimpleHandler handler, SimpleSliceHandler slice_handler,
+			ParserState parser_state, char[] data) {
+		if (slice_handler != null) {
+			slice_handler.elementCData(parser_state.element_cdata.slice(data,
+					parser_state.cdata_slice));
+		} else {
+			handler.elementCData(parser_state.element_cdata.toStringBuilder(data));
+		}
+		parser_state.element_cdata.reset();
+	}
+
+	private void elementCDataChunk(SimpleCDataChunkHandler handler, ParserState parser_state,
+			char[] data, boolean last) {
+		CharSlice chunk = parser_state.element_cdata.slice(data, parser_state.cdata_slice);
+
+		parser_state.cdata_emitted = last
+				? 0
+				: parser_state.cdata_emitted + chunk.length();
+		handler.elementCDataChunk(chunk, last);
+		parser_state.element_cdata.reset();
+	}
+
+	private void otherXML(SimpleHandler handler, SimpleSliceHandler slice_handler,
+			ParserState parser_state, char[] data) {
+		if (slice_handler != null) {
+			slice_handler.otherXML(parser_state.element_cdata.slice(data, parser_state.cdata_slice));
+		} else {
+			handler.otherXML(parser_state.element_cdata.toStringBuilder(data));
+		}
+		parser_state.element_cdata.reset();
+	}
+
+	/**
+	 * Skips the run of characters starting at <code>from</code> which do not
+	 * need any processing by the state machine: valid <em>XML</em> characters
+	 * which are neither markup, entity start nor the given <code>quote</code>.
+	 * The run is part of the token which is currently collected. Callers limit
+	 * <code>end</code> so the run never exceeds size limit, thus limits are
+	 * still enforced by the state machine on the following character.
+	 *
+	 * @return index of the last character consumed
+	 */
+	private int scanText(ParserState parser_state, char[] data, int from, int end, char quote) {
+		int index = from;
+
+		while (index < end) {
+			char chr = data[index];
+
+			// Surrogates are left for the full check as they depend on the
+			// previous character
+			if (((CHAR_TYPES[chr] & C_TEXT_STOP) != 0) || (chr == quote)) {
+				break;
+			}
+			++index;
+		}
+		if (index > from) {
+			parser_state.highSurrogate = false;
+		}
+
+		return index - 1;
+	}
+
+//private boolean ignore(char chr) {
+//  return Arrays.binarySearch(IGNORE_CHARS, chr) >= 0;
+//}
+	private Token[] initArray(int size) {
+		Token[] array = new Token[size];
+
+		for (int i = 0; i < size; i++) {
+			array[i] = new Token();
+		}
+
+		return array;
+	}
 
-		// return Arrays.binarySearch(WHITE_CHARS, chr) >= 0;
+	private CharSlice[] initSlices(int size) {
+		return new CharSlice[size];
 	}
 
+	//~--- get methods ----------------------------------------------------------
+
+
 	//~--- methods --------------------------------------------------------------
 
-	private StringBuilder[] resizeArray(StringBuilder[] src, int size) {
-		StringBuilder[] array = new StringBuilder[size];
+	private Token[] resizeArray(Token[] src, int size) {
+		Token[] array = Arrays.copyOf(src, size);
 
-		System.arraycopy(src, 0, array, 0, src.length);
-		Arrays.fill(array, src.length, array.length, null);
+		for (int i = src.length; i < size; i++) {
+			array[i] = new Token();
+		}
 
 		return array;
 	}
 
-	private static final boolean[] ALLOWED_CHARS_LOW = new boolean[0x20];
-	static {
-		ALLOWED_CHARS_LOW[0x09] = true;
-		ALLOWED_CHARS_LOW[0x0A] = true;
-		ALLOWED_CHARS_LOW[0x0D] = true;
+	/**
+	 * Decodes <em>UTF-8</em> bytes from <code>src</code> into <code>dst</code>
+	 * until the source is exhausted or there is no more space left in the
+	 * destination. Incomplete multi-byte sequence found at the end of the
+	 * source is kept in parser state. Decoding stops at the first malformed
+	 * sequence and <code>utf8_malformed</code> flag is set in such a case.
+	 *
+	 * @return number of characters written to <code>dst</code>
+	 */
+	int decodeUTF8(ParserState parser_state, ByteBuffer src, char[] dst) {
+		int pos = src.position();
+		int limit = src.limit();
+		int count = 0;
+
+		// Leave space for a surrogate pair
+		int max = dst.length - 1;
+		int code = parser_state.utf8_code;
+		int needed = parser_state.utf8_needed;
+		int min = parser_state.utf8_min;
+
+		while ((pos < limit) && (count < max)) {
+			int b = src.get(pos++);
+
+			if (needed == 0) {
+				if (b >= 0) {
+					dst[count++] = (char) b;
+
+					continue;
+				}
+				if ((b & 0xE0) == 0xC0) {
+					code = b & 0x1F;
+					needed = 1;
+					min = 0x80;
+				} else if ((b & 0xF0) == 0xE0) {
+					code = b & 0x0F;
+					needed = 2;
+					min = 0x800;
+				} else if ((b & 0xF8) == 0xF0) {
+					code = b & 0x07;
+					needed = 3;
+					min = 0x10000;
+				} else {
+					parser_state.utf8_malformed = true;
+
+					break;
+				}
+			} else {
+				if ((b & 0xC0) != 0x80) {
+					parser_state.utf8_malformed = true;
+
+					break;
+				}
+				code = (code << 6) | (b & 0x3F);
+				if (--needed == 0) {
+					if ((code < min) || (code > Character.MAX_CODE_POINT)
+							|| ((code >= Character.MIN_SURROGATE) && (code <= Character.MAX_SURROGATE))) {
+						parser_state.utf8_malformed = true;
+
+						break;
+					}
+					if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+						dst[count++] = (char) code;
+					} else {
+						dst[count++] = Character.highSurrogate(code);
+						dst[count++] = Character.lowSurrogate(code);
+					}
+				}
+			}
+		}
+		src.position(pos);
+		parser_state.utf8_code = code;
+		parser_state.utf8_needed = needed;
+		parser_state.utf8_min = min;
+
+		return count;
 	}
-	
+
 	protected boolean checkIsCharValidInXML(ParserState parserState, char chr) {
 		boolean highSurrogate = parserState.highSurrogate;
 		parserState.highSurrogate = false;
-		if (chr <= 0xD7FF) {
-			if (chr >= 0x20)
-				return true;
-			return ALLOWED_CHARS_LOW[chr];
-		} else if (chr <= 0xFFFD) {
-			if (chr >= 0xE000)
-				return true;
-
-			if (Character.isLowSurrogate(chr)) {
-				return highSurrogate;
-			} else if (Character.isHighSurrogate(chr)) {
-				parserState.highSurrogate = true;
-				return true;
-			}
+		if ((CHAR_TYPES[chr] & (C_INVALID | C_SURROGATE)) == 0) {
+			return true;
+		}
+		if (Character.isLowSurrogate(chr)) {
+			return highSurrogate;
+		} else if (Character.isHighSurrogate(chr)) {
+			parserState.highSurrogate = true;
+			return true;
 		}
 		return false;
 	}
@@ -715,17 +1312,298 @@ public class SimpleParser {
 	//~--- inner classes --------------------------------------------------------
 
 	protected static class ParserState {
-		StringBuilder[] attrib_names = null;
-		StringBuilder[] attrib_values = null;
+		Token[] attrib_names = null;
+		Token[] attrib_values = null;
 		int current_attr = -1;
-		StringBuilder element_cdata = null;
-		StringBuilder element_name = null;
+		int cdata_emitted = 0;
+		boolean paused = false;
+		boolean skip = false;
+		boolean skip_capture = false;
+		int skip_depth = 0;
+		boolean skip_notify = false;
+		boolean skip_slash = false;
+
+		/** Stream offset where content of the skipped element starts */
+		long skip_start = 0;
+
+		/** Names of elements open in skipped content, the skipped element first */
+		char[] skip_names = null;
+		int skip_names_len = 0;
+
+		/** Start of name of each open element in <code>skip_names</code> */
+		int[] skip_name_starts = null;
+
+		/** Start of name of the tag which is currently skipped */
+		int skip_name_start = 0;
+
+		/**
+		 * Number of close tag name characters matching name of the open element,
+		 * -1 if the name does not match
+		 */
+		int skip_match = 0;
+		boolean skip_in_name = false;
+		SkipState skip_state = SkipState.TEXT;
+
+		/** Number of elements opened and not closed yet */
+		int depth = 0;
+
+		/**
+		 * White characters only data found at this or lower depth is treated as
+		 * a keep-alive
+		 */
+		int keepalive_depth = 0;
+
+		/** Number of keep-alives found so far */
+		long keepalives = 0;
+
+		/** Number of characters parsed so far */
+		long position = 0;
+
+		/** Stream offset of the last '&lt;' character */
+		long tag_start = 0;
+
+		/** Stream offset just after the last tag delivered to the handler */
+		long tag_end = 0;
+		final Token element_cdata = new Token();
+		final Token element_name = new Token();
 		String errorMessage = null;
 		boolean highSurrogate = false;
 		EntityType entityType = EntityType.UNKNOWN;
 		State parentState = null;
 		boolean slash_found = false;
 		State state = State.START;
+		int utf8_code = 0;
+		int utf8_min = 0;
+		boolean utf8_malformed = false;
+		int utf8_needed = 0;
+		CharSlice name_slice = new CharSlice();
+		CharSlice cdata_slice = new CharSlice();
+		CharSlice[] attrib_name_slices = null;
+		CharSlice[] attrib_value_slices = null;
+
+		/**
+		 * Starts skipping content of the element which has just been opened.
+		 * Name of the element is used for matching the close tag, the caller
+		 * must keep it in <code>element_name</code> for the end element event.
+		 */
+		void startSkip(CharSlice name) {
+			state = State.SKIP;
+			skip_state = SkipState.TEXT;
+			skip_depth = 1;
+			skip_start = tag_end;
+			skip_names_len = 0;
+			skip_name_start = 0;
+			for (int i = 0; i < name.length(); i++) {
+				appendSkipName(name.charAt(i));
+			}
+			openSkipName(0);
+		}
+
+		void appendSkipName(char chr) {
+			if (skip_names == null) {
+				skip_names = new char[64];
+			} else if (skip_names_len == skip_names.length) {
+				skip_names = Arrays.copyOf(skip_names, skip_names_len * 2);
+			}
+			skip_names[skip_names_len++] = chr;
+		}
+
+		/**
+		 * Records name of the tag which is currently skipped as name of the open
+		 * element at the given depth, counted from 0.
+		 */
+		void openSkipName(int depth) {
+			if (skip_name_starts == null) {
+				skip_name_starts = new int[8];
+			} else if (depth == skip_name_starts.length) {
+				skip_name_starts = Arrays.copyOf(skip_name_starts, depth * 2);
+			}
+			skip_name_starts[depth] = skip_name_start;
+		}
+
+		void matchSkipName(char chr, int depth) {
+			int pos = skip_name_starts[depth - 1] + skip_match;
+
+			skip_match = (skip_in_name && (skip_match >= 0) && (pos < skip_names_len)
+					&& (skip_names[pos] == chr))
+					? skip_match + 1
+					: -1;
+		}
+
+		/**
+		 * Closes the open element at the given depth, counted from 1, if name of
+		 * the close tag matches its name.
+		 *
+		 * @return <code>false</code> if names do not match
+		 */
+		boolean closeSkipName(int depth) {
+			int start = skip_name_starts[depth - 1];
+
+			if (skip_match != skip_names_len - start) {
+				return false;
+			}
+			skip_names_len = start;
+
+			return true;
+		}
+
+		/**
+		 * Drops all pending tokens, used when parsing cannot be continued.
+		 */
+		void reset() {
+			element_name.reset();
+			element_cdata.reset();
+			if (attrib_names != null) {
+				for (int i = 0; i < attrib_names.length; i++) {
+					attrib_names[i].reset();
+					attrib_values[i].reset();
+				}
+			}
+			current_attr = -1;
+		}
+
+		/**
+		 * Copies all pending tokens from the given buffer which is about to be
+		 * released by the caller.
+		 */
+		void suspend(char[] data, int limit) {
+			element_name.suspend(data, limit);
+			element_cdata.suspend(data, limit);
+			for (int i = 0; i <= current_attr; i++) {
+				attrib_names[i].suspend(data, limit);
+				attrib_values[i].suspend(data, limit);
+			}
+		}
+	}
+
+	/**
+	 * <code>Token</code> keeps characters of a name, attribute value or
+	 * character data which is currently parsed. As long as the token lies in a
+	 * single input buffer only its boundaries are recorded, so no characters are
+	 * copied. Characters are copied to the internal <code>carry</code> buffer
+	 * only when the token is interrupted: at the end of the input buffer or when
+	 * some characters inside the token have to be skipped.
+	 */
+	static final class Token {
+		private static final char[] EMPTY = new char[0];
+
+		/**
+		 * Carry buffers bigger than this are released on reset instead of being
+		 * kept for the next token.
+		 */
+		private static final int MAX_KEPT_CARRY = 8 * 1024;
+		char[] carry = EMPTY;
+		int carry_len = 0;
+		int end = -1;
+		int start = -1;
+
+		void finish(int index) {
+			if (start >= 0) {
+				end = index;
+			}
+		}
+
+		boolean isEmpty() {
+			return (carry_len == 0) && (start < 0);
+		}
+
+		int length(int limit) {
+			return carry_len + ((start < 0)
+					? 0
+					: (((end < 0)
+							? limit
+							: end) - start));
+		}
+
+		void mark(int index) {
+			if (start < 0) {
+				start = index;
+			}
+		}
+
+		/**
+		 * Replaces token characters with a copy of the given characters.
+		 */
+		void set(CharSlice chars) {
+			char[] src = chars.array();
+			int count = chars.length();
+
+			if (count > carry.length) {
+				carry = new char[Math.max(count, 16)];
+			}
+			System.arraycopy(src, chars.offset(), carry, 0, count);
+			carry_len = count;
+			start = -1;
+			end = -1;
+		}
+
+		void reset() {
+			if (carry.length > MAX_KEPT_CARRY) {
+				carry = EMPTY;
+			}
+			carry_len = 0;
+			start = -1;
+			end = -1;
+		}
+
+		/**
+		 * Points <code>slice</code> at the token characters. Characters are not
+		 * copied unless part of the token has already been carried over.
+		 */
+		CharSlice slice(char[] data, CharSlice slice) {
+			if (carry_len == 0) {
+				if (start < 0) {
+					slice.set(EMPTY, 0, 0);
+				} else {
+					slice.set(data, start, length(data.length));
+				}
+			} else {
+				suspend(data, data.length);
+				slice.set(carry, 0, carry_len);
+			}
+
+			return slice;
+		}
+
+		void suspend(char[] data, int limit) {
+			if (start < 0) {
+				return;
+			}
+
+			int from = start;
+			int count = ((end < 0)
+					? limit
+					: end) - from;
+
+			if (carry_len + count > carry.length) {
+				carry = Arrays.copyOf(carry, Math.max(carry_len + count, Math.max(16, carry.length * 2)));
+			}
+			System.arraycopy(data, from, carry, carry_len, count);
+			carry_len += count;
+			start = -1;
+			end = -1;
+		}
+
+		String toString(char[] data, int limit) {
+			return toStringBuilder(data, limit).toString();
+		}
+
+		StringBuilder toStringBuilder(char[] data) {
+			return toStringBuilder(data, data.length);
+		}
+
+		private StringBuilder toStringBuilder(char[] data, int limit) {
+			StringBuilder result = new StringBuilder(length(limit));
+
+			result.append(carry, 0, carry_len);
+			if (start >= 0) {
+				result.append(data, start, ((end < 0)
+						? limit
+						: end) - start);
+			}
+
+			return result;
+		}
 	}
 }    // SimpleParser
 
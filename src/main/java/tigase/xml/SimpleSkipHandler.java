@@ -0,0 +1,81 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+/**
+ * <code>SimpleSkipHandler</code> is an extension of {@link SimpleHandler} for
+ * handlers which are not interested in content of some elements, for example
+ * large payloads which are dropped or forwarded as they are.
+ * <p>
+ * Just after <code>startElement</code> is called for an element which is not
+ * empty the parser asks the handler how content of the element should be
+ * processed. Content of a skipped element is scanned to the matching end tag
+ * tracking only nesting depth, quotes, entities and characters validity, no
+ * events are delivered for it. Once the end tag is found the handler receives
+ * <code>skippedContent</code> followed by <code>endElement</code> for the
+ * skipped element, so calls to the handler stay balanced.
+ * </p>
+ * <p>
+ * Length of the skipped content is reported in characters, which is enough to
+ * enforce size policies without collecting the content.
+ * <code>SimpleParser.MAX_CDATA_SIZE</code> limits only captured content.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public interface SimpleSkipHandler
+				extends SimpleHandler {
+	/**
+	 * Called just after <code>startElement</code> for elements which are not
+	 * empty.
+	 *
+	 * @return how content of the element should be processed
+	 */
+	Directive contentDirective();
+
+	/**
+	 * Receives information about skipped content of the element just before
+	 * <code>endElement</code> is called for it.
+	 *
+	 * @param length number of characters of the content, without the end tag
+	 * @param content raw content of the element if it was captured,
+	 * <code>null</code> otherwise; valid only during the call
+	 */
+	default void skippedContent(long length, CharSlice content) {}
+
+	//~--- inner enums ----------------------------------------------------------
+
+	/**
+	 * Describes how content of an element is processed by the parser.
+	 */
+	public static enum Directive {
+		/** Content is parsed and all events are delivered */
+		PARSE,
+		/** Content is checked for correctness but no events are delivered */
+		SKIP,
+		/** Content is skipped but passed to the handler as a raw text */
+		CAPTURE;
+	}
+}    // SimpleSkipHandler
@@ -0,0 +1,84 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+/**
+ * <code>SimpleSliceHandler</code> is an extension of {@link SimpleHandler}
+ * which receives parser events as {@link CharSlice} instances pointing to
+ * the parser input buffer instead of newly allocated
+ * <code>StringBuilder</code> objects. <code>SimpleParser</code> detects
+ * handlers implementing this interface and calls slice based methods only.
+ * <p>
+ * Slices and slice arrays are reused by the parser and are valid only during
+ * the callback. Attribute arrays may be longer than the number of attributes,
+ * the first <code>null</code> entry marks the end of the attributes list.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public interface SimpleSliceHandler
+				extends SimpleHandler {
+	void startElement(CharSlice name, CharSlice[] attr_names, CharSlice[] attr_values);
+
+	void elementCData(CharSlice cdata);
+
+	boolean endElement(CharSlice name);
+
+	void otherXML(CharSlice other);
+
+	//~--- methods --------------------------------------------------------------
+
+	@Override
+	default void startElement(StringBuilder name, StringBuilder[] attr_names,
+			StringBuilder[] attr_values) {
+		CharSlice[] names  = null;
+		CharSlice[] values = null;
+
+		if (attr_names != null) {
+			names  = new CharSlice[attr_names.length];
+			values = new CharSlice[attr_names.length];
+			for (int i = 0; (i < attr_names.length) && (attr_names[i] != null); i++) {
+				names[i]  = CharSlice.valueOf(attr_names[i]);
+				values[i] = CharSlice.valueOf(attr_values[i]);
+			}
+		}
+		startElement(CharSlice.valueOf(name), names, values);
+	}
+
+	@Override
+	default void elementCData(StringBuilder cdata) {
+		elementCData(CharSlice.valueOf(cdata));
+	}
+
+	@Override
+	default boolean endElement(StringBuilder name) {
+		return endElement(CharSlice.valueOf(name));
+	}
+
+	@Override
+	default void otherXML(StringBuilder other) {
+		otherXML(CharSlice.valueOf(other));
+	}
+}    // SimpleSliceHandler
@@ -0,0 +1,447 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>StanzaFramer</code> finds boundaries of top level stanzas in
+ * <em>XMPP</em> stream without building <em>DOM</em> for them. Only the
+ * stanza start tag is parsed, its name and selected attributes are available
+ * to the caller, the stanza content is scanned by <code>SimpleParser</code> in
+ * skip mode which tracks only nesting depth, quotes, entities and character
+ * validity. Raw stanza text is kept so it can be forwarded as it was
+ * received.
+ * <p>
+ * If the first element of the stream is <code>stream:stream</code> its start
+ * and end tags are returned as <code>STREAM_START</code> and
+ * <code>STREAM_END</code> frames and its children as <code>STANZA</code>
+ * frames, otherwise each top level element is returned as a stanza. A new
+ * <code>stream:stream</code> start tag inside the stream, sent after stream
+ * restart, is returned as another <code>STREAM_START</code> frame.
+ * Offsets are counted in characters from the beginning of the stream.
+ * </p>
+ * <p>
+ * <code>getByteOffset()</code> and <code>getByteLength()</code> give position
+ * of the frame in <em>UTF-8</em> encoded stream, so if data is fed as
+ * <em>UTF-8</em> bytes the frame can be sliced from the received bytes and
+ * forwarded without encoding it again. Bytes are counted from characters of
+ * the stream, which is exact because malformed and overlong sequences are
+ * rejected by the decoder.
+ * </p>
+ * <p>
+ * Frame data returned by getters is valid until the next call to
+ * <code>next()</code> or <code>feed()</code>. Instances of this class are not
+ * thread safe, there should be one framer per connection.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public class StanzaFramer {
+	/**
+	 * Results of <code>next()</code> method.
+	 */
+	public static enum Frame {
+		STREAM_START, STANZA, STREAM_END, NEED_INPUT, ERROR
+	}
+
+	;
+
+	private static final String STREAM_NAME = "stream:stream";
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final String[] attributes;
+	private final String[] attribute_values;
+	private char[] buffer = new char[1024];
+
+	/** Stream offset of buffer[0] */
+	private long buffer_offset = 0;
+
+	/** Stream offset up to which <em>UTF-8</em> bytes have been counted */
+	private long counted = 0;
+	private long counted_bytes = 0;
+	private int depth = 0;
+	private String errorMessage = null;
+	private Frame frame = null;
+	private long frame_byte_end = -1;
+	private long frame_byte_start = -1;
+	private long frame_end = 0;
+	private long frame_start = 0;
+	private final FramerHandler handler = new FramerHandler();
+	private int limit = 0;
+	private final int maxStanzaSize;
+	private String name = null;
+	private final SimpleParser parser;
+	private final SimpleParser.ParserState parser_state = new SimpleParser.ParserState();
+	private int position = 0;
+	private long stanza_start = -1;
+	private boolean stream = false;
+	private final SymbolTable symbols;
+	private char[] utf8_chunk = null;
+	private final CharSlice raw = new CharSlice();
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new <code>StanzaFramer</code> instance extracting
+	 * <code>to</code>, <code>from</code>, <code>type</code> and
+	 * <code>id</code> attributes of stanzas.
+	 */
+	public StanzaFramer() {
+		this(SingletonFactory.getParserInstance(), SymbolTable.getDefault(),
+				SingletonFactory.getParserInstance().MAX_CDATA_SIZE, "to", "from", "type", "id");
+	}
+
+	/**
+	 * Creates a new <code>StanzaFramer</code> instance.
+	 *
+	 * @param parser providing limits configuration
+	 * @param symbols used to resolve stanza names
+	 * @param maxStanzaSize maximum number of characters of a single stanza
+	 * @param attributes names of stanza attributes to extract
+	 */
+	public StanzaFramer(SimpleParser parser, SymbolTable symbols, int maxStanzaSize,
+			String... attributes) {
+		this.parser        = parser;
+		this.symbols       = symbols;
+		this.maxStanzaSize = maxStanzaSize;
+		this.attributes    = attributes;
+		attribute_values   = new String[attributes.length];
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Adds characters to the data which is waiting for framing.
+	 *
+	 * @param data array with characters
+	 * @param off index of the first character to add
+	 * @param len number of characters to add
+	 */
+	public void feed(char[] data, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(data, off, buffer, limit, len);
+		limit += len;
+	}
+
+	/**
+	 * Adds <em>UTF-8</em> encoded data to the data which is waiting for
+	 * framing. All remaining bytes of the buffer are consumed.
+	 *
+	 * @param data buffer with <em>UTF-8</em> encoded data
+	 */
+	public void feed(ByteBuffer data) {
+		if (utf8_chunk == null) {
+			utf8_chunk = new char[1024];
+		}
+		while (data.hasRemaining() && !parser_state.utf8_malformed) {
+			int count = parser.decodeUTF8(parser_state, data, utf8_chunk);
+
+			feed(utf8_chunk, 0, count);
+		}
+		if (parser_state.utf8_malformed) {
+			data.position(data.limit());
+			if (errorMessage == null) {
+				errorMessage = "Malformed UTF-8 sequence in XML stream";
+			}
+		}
+	}
+
+	/**
+	 * Finds the next frame in the data fed so far.
+	 *
+	 * @return kind of the frame found, <code>NEED_INPUT</code> if there is no
+	 * complete frame in the data or <code>ERROR</code> if data is not correct
+	 * <em>XML</em>.
+	 */
+	public Frame next() {
+		frame = null;
+		while ((frame == null) && (errorMessage == null) && (position < limit)) {
+			int stop = parser.parse(handler, parser_state, buffer, position, limit);
+
+			if (stop < 0) {
+				break;
+			}
+			position = stop;
+			if (((stanza_start >= 0) && (buffer_offset + position - stanza_start > maxStanzaSize))
+					|| ((frame == Frame.STANZA) && (getLength() > maxStanzaSize))) {
+				errorMessage = "Max stanza size exceeded: " + maxStanzaSize;
+			}
+		}
+		if ((frame == null) && (errorMessage == null)
+				&& (parser_state.state == SimpleParser.State.ERROR)) {
+			errorMessage = parser_state.errorMessage;
+		}
+		if (errorMessage != null) {
+			return Frame.ERROR;
+		}
+
+		return (frame != null)
+				? frame
+				: Frame.NEED_INPUT;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns value of the selected attribute of the current stanza.
+	 *
+	 * @param attName name of the attribute, one of given to the constructor
+	 *
+	 * @return attribute value or <code>null</code>
+	 */
+	public String getAttribute(String attName) {
+		for (int i = 0; i < attributes.length; i++) {
+			if (attributes[i].equals(attName)) {
+				return attribute_values[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns number of bytes of the current frame in <em>UTF-8</em> encoded
+	 * stream.
+	 *
+	 * @return frame length in bytes
+	 */
+	public int getByteLength() {
+		countFrameBytes();
+
+		return (int) (frame_byte_end - frame_byte_start);
+	}
+
+	/**
+	 * Returns offset of the first byte of the current frame in <em>UTF-8</em>
+	 * encoded stream. If data is fed as <em>UTF-8</em> bytes it is the position
+	 * of the frame in the received data.
+	 *
+	 * @return frame offset in bytes
+	 */
+	public long getByteOffset() {
+		countFrameBytes();
+
+		return frame_byte_start;
+	}
+
+	/**
+	 * Returns description of the framing error.
+	 *
+	 * @return error message or <code>null</code>
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * Returns raw text of the current frame.
+	 *
+	 * @return frame characters
+	 */
+	public CharSlice getFrame() {
+		raw.set(buffer, (int) (frame_start - buffer_offset), getLength());
+
+		return raw;
+	}
+
+	/**
+	 * Returns number of characters of the current frame.
+	 *
+	 * @return frame length
+	 */
+	public int getLength() {
+		return (int) (frame_end - frame_start);
+	}
+
+	/**
+	 * Returns name of the current stanza or stream element.
+	 *
+	 * @return canonical element name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns stream offset of the first character of the current frame.
+	 *
+	 * @return frame offset
+	 */
+	public long getOffset() {
+		return frame_start;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Counts <em>UTF-8</em> bytes of buffered characters up to the given
+	 * stream offset. Counting continues from the previous call, so each
+	 * character is counted once.
+	 */
+	private void countBytes(long offset) {
+		int end = (int) (offset - buffer_offset);
+
+		for (int i = (int) (counted - buffer_offset); i < end; i++) {
+			char chr = buffer[i];
+
+			// Each half of a surrogate pair counts for 2 of 4 bytes
+			counted_bytes += (chr < 0x80)
+					? 1
+					: (((chr < 0x800) || Character.isSurrogate(chr))
+							? 2
+							: 3);
+		}
+		if (offset > counted) {
+			counted = offset;
+		}
+	}
+
+	private void countFrameBytes() {
+		if (frame_byte_start < 0) {
+			countBytes(frame_start);
+			frame_byte_start = counted_bytes;
+			countBytes(frame_end);
+			frame_byte_end = counted_bytes;
+		}
+	}
+
+	private void ensureCapacity(int len) {
+
+		// Data of the stanza being framed and of the tag being parsed is kept
+		long keep = buffer_offset + position;
+
+		if (stanza_start >= 0) {
+			keep = stanza_start;
+		} else if (parser_state.tag_start >= frame_end) {
+			keep = Math.min(keep, parser_state.tag_start);
+		}
+
+		int discard = (int) (keep - buffer_offset);
+
+		if (discard > 0) {
+			countBytes(keep);
+			System.arraycopy(buffer, discard, buffer, 0, limit - discard);
+			limit         -= discard;
+			position      -= discard;
+			buffer_offset += discard;
+		}
+		if (limit + len > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(limit + len, buffer.length * 2));
+		}
+	}
+
+	private void setFrame(Frame frame, long start, long end) {
+		this.frame       = frame;
+		frame_start      = start;
+		frame_end        = end;
+		frame_byte_start = -1;
+		frame_byte_end   = -1;
+		parser_state.paused = true;
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private class FramerHandler
+					implements SimpleSliceHandler {
+		@Override
+		public void elementCData(CharSlice cdata) {
+
+			// Whitespaces between stanzas
+		}
+
+		@Override
+		public boolean endElement(CharSlice name) {
+			if (stanza_start >= 0) {
+				setFrame(Frame.STANZA, stanza_start, parser_state.tag_end);
+				stanza_start = -1;
+			} else if (stream && (depth == 1) && name.contentEquals(STREAM_NAME)) {
+				StanzaFramer.this.name = STREAM_NAME;
+				depth = 0;
+				setFrame(Frame.STREAM_END, parser_state.tag_start, parser_state.tag_end);
+			} else {
+				return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		public void error(String errorMessage) {
+			StanzaFramer.this.errorMessage = errorMessage;
+		}
+
+		@Override
+		public void otherXML(CharSlice other) {
+
+			// Ignored
+		}
+
+		@Override
+		public Object restoreParserState() {
+			return parser_state;
+		}
+
+		@Override
+		public void saveParserState(Object state) {}
+
+		@Override
+		public void startElement(CharSlice name, CharSlice[] attr_names, CharSlice[] attr_values) {
+			String elem_name = symbols.intern(name.array(), name.offset(), name.length());
+
+			StanzaFramer.this.name = elem_name;
+			Arrays.fill(attribute_values, null);
+			if (attr_names != null) {
+				for (int i = 0; (i < attr_names.length) && (attr_names[i] != null); i++) {
+					for (int j = 0; j < attributes.length; j++) {
+						if (attr_names[i].contentEquals(attributes[j])) {
+							attribute_values[j] = attr_values[i].toString();
+						}
+					}
+				}
+			}
+			if ((depth <= 1) && (elem_name == STREAM_NAME)) {
+				if (depth == 1) {
+
+					// Stream restart, parser sees the new stream element at depth of the old one
+					parser_state.depth = 0;
+				}
+				stream = true;
+				depth  = 1;
+				setFrame(Frame.STREAM_START, parser_state.tag_start, parser_state.tag_end);
+			} else {
+				stanza_start        = parser_state.tag_start;
+				parser_state.skip   = true;
+			}
+		}
+	}
+}    // StanzaFramer
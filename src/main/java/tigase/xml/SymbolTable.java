@@ -0,0 +1,204 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+/**
+ * <code>SymbolTable</code> - cache of canonical <code>String</code> instances
+ * for element names, attribute names and namespaces. It returns exactly the
+ * same instances as <code>String.intern()</code> so identity comparisons used
+ * by <code>*StaticStr</code> methods keep working, but for known symbols it
+ * avoids calls to the global JVM string table and, when resolving from
+ * characters, creation of temporary <code>String</code> objects.
+ * <p>
+ * The table has a fixed number of slots, each keeping the last symbol
+ * hashed to it, so it never grows regardless of the data received. It does
+ * not use any locks: slots are written and read without synchronization,
+ * which is safe as <code>String</code> is immutable and in the worst case a
+ * lookup misses and falls back to <code>String.intern()</code>.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public final class SymbolTable {
+	/**
+	 * Number of slots of the default symbol table, rounded up to power of 2.
+	 */
+	public static final String SYMBOL_TABLE_SIZE_PROP_KEY = "tigase.xml.symbol_table_size";
+
+	/**
+	 * Symbols longer than this are not cached, they are passed directly to
+	 * <code>String.intern()</code>.
+	 */
+	public static final int MAX_SYMBOL_LENGTH = 128;
+	private static final SymbolTable defaultTable =
+		new SymbolTable(Integer.getInteger(SYMBOL_TABLE_SIZE_PROP_KEY, 4096));
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final int mask;
+	private final String[] symbols;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new <code>SymbolTable</code> instance.
+	 *
+	 * @param size number of slots, rounded up to power of 2
+	 */
+	public SymbolTable(int size) {
+		int capacity = 16;
+
+		while ((capacity < size) && (capacity < (1 << 20))) {
+			capacity <<= 1;
+		}
+		symbols = new String[capacity];
+		mask    = capacity - 1;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns symbol table shared by all parsers and elements.
+	 *
+	 * @return default <code>SymbolTable</code>
+	 */
+	public static SymbolTable getDefault() {
+		return defaultTable;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Returns canonical instance of the given string.
+	 *
+	 * @param str to find canonical instance for
+	 *
+	 * @return the same instance as <code>str.intern()</code>
+	 */
+	public String intern(String str) {
+		int len = str.length();
+
+		if (len > MAX_SYMBOL_LENGTH) {
+			return str.intern();
+		}
+
+		int idx       = index(str.hashCode());
+		String symbol = symbols[idx];
+
+		if ((symbol == str) || ((symbol != null) && symbol.equals(str))) {
+			return symbol;
+		}
+		symbol       = str.intern();
+		symbols[idx] = symbol;
+
+		return symbol;
+	}
+
+	/**
+	 * Returns canonical instance of a string consisting of the given range of
+	 * characters. No objects are created if the symbol is already known.
+	 *
+	 * @param chars containing symbol characters
+	 * @param start index of the first symbol character
+	 * @param end index after the last symbol character
+	 *
+	 * @return the same instance as <code>chars.subSequence(start, end).toString().intern()</code>
+	 */
+	public String intern(CharSequence chars, int start, int end) {
+		int len = end - start;
+
+		if (len > MAX_SYMBOL_LENGTH) {
+			return chars.subSequence(start, end).toString().intern();
+		}
+
+		int hash = 0;
+
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + chars.charAt(i);
+		}
+
+		int idx       = index(hash);
+		String symbol = symbols[idx];
+
+		if ((symbol != null) && (symbol.length() == len)) {
+			int i = 0;
+
+			while ((i < len) && (symbol.charAt(i) == chars.charAt(start + i))) {
+				++i;
+			}
+			if (i == len) {
+				return symbol;
+			}
+		}
+		symbol       = chars.subSequence(start, end).toString().intern();
+		symbols[idx] = symbol;
+
+		return symbol;
+	}
+
+	/**
+	 * Returns canonical instance of a string consisting of the given range of
+	 * characters. No objects are created if the symbol is already known.
+	 *
+	 * @param chars containing symbol characters
+	 * @param offset index of the first symbol character
+	 * @param len number of symbol characters
+	 *
+	 * @return the same instance as <code>new String(chars, offset, len).intern()</code>
+	 */
+	public String intern(char[] chars, int offset, int len) {
+		if (len > MAX_SYMBOL_LENGTH) {
+			return new String(chars, offset, len).intern();
+		}
+
+		int hash = 0;
+
+		for (int i = offset; i < offset + len; i++) {
+			hash = 31 * hash + chars[i];
+		}
+
+		int idx       = index(hash);
+		String symbol = symbols[idx];
+
+		if ((symbol != null) && (symbol.length() == len)) {
+			int i = 0;
+
+			while ((i < len) && (symbol.charAt(i) == chars[offset + i])) {
+				++i;
+			}
+			if (i == len) {
+				return symbol;
+			}
+		}
+		symbol       = new String(chars, offset, len).intern();
+		symbols[idx] = symbol;
+
+		return symbol;
+	}
+
+	private int index(int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}    // SymbolTable
@@ -0,0 +1,442 @@
+/*
+ * Tigase Jabber/XMPP XML Tools
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xml;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * <code>XMLCursor</code> - pull parser API on top of <code>SimpleParser</code>
+ * state machine. Data is fed to the cursor incrementally, as it is received
+ * from the network, and parsed only when the caller asks for the next event,
+ * one event at a time. So the caller can, for example, read only the top
+ * level element of a stanza with its attributes and leave the rest of the
+ * data unparsed.
+ * <p>
+ * Names and attributes returned after <code>START_ELEMENT</code> and text
+ * returned after <code>TEXT</code> event are valid until the next call to
+ * <code>next()</code> or <code>feed()</code>.
+ * </p>
+ * <p>
+ * End tags are checked against names of open elements, a close tag which does
+ * not match the element it closes is reported as <code>ERROR</code>. Content
+ * of an element which the caller is not interested in can be left unparsed
+ * with <code>skipElement()</code>.
+ * </p>
+ * <p>
+ * Instances of this class are not thread safe, there should be one cursor
+ * per connection.
+ * </p>
+ *
+ * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
+ * @version $Rev$
+ */
+public class XMLCursor {
+	/**
+	 * Events returned by <code>next()</code> method.
+	 */
+	public static enum Event {
+		START_ELEMENT, END_ELEMENT, TEXT, NEED_INPUT, ERROR
+	}
+
+	;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final SimpleParser parser;
+	private final SimpleParser.ParserState parser_state = new SimpleParser.ParserState();
+	private final CursorHandler handler = new CursorHandler();
+	private final SymbolTable symbols;
+	private char[] buffer = new char[1024];
+	private char[] utf8_chunk = null;
+	private int depth = 0;
+	private String errorMessage = null;
+	private int limit = 0;
+	private int position = 0;
+	private final Event[] events = new Event[2];
+	private int events_count = 0;
+	private int events_head = 0;
+	private Event event = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates a new <code>XMLCursor</code> instance using shared parser
+	 * configuration.
+	 */
+	public XMLCursor() {
+		this(SingletonFactory.getParserInstance(), SymbolTable.getDefault());
+	}
+
+	/**
+	 * Creates a new <code>XMLCursor</code> instance.
+	 *
+	 * @param parser providing limits configuration
+	 * @param symbols used to resolve element names
+	 */
+	public XMLCursor(SimpleParser parser, SymbolTable symbols) {
+		this.parser  = parser;
+		this.symbols = symbols;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Adds characters to the data which is waiting for parsing.
+	 *
+	 * @param data array with characters
+	 * @param off index of the first character to add
+	 * @param len number of characters to add
+	 */
+	public void feed(char[] data, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(data, off, buffer, limit, len);
+		limit += len;
+	}
+
+	/**
+	 * Adds <em>UTF-8</em> encoded data to the data which is waiting for
+	 * parsing. All remaining bytes of the buffer are consumed.
+	 *
+	 * @param data buffer with <em>UTF-8</em> encoded data
+	 */
+	public void feed(ByteBuffer data) {
+		if (utf8_chunk == null) {
+			utf8_chunk = new char[1024];
+		}
+		while (data.hasRemaining() && !parser_state.utf8_malformed) {
+			int count = parser.decodeUTF8(parser_state, data, utf8_chunk);
+
+			feed(utf8_chunk, 0, count);
+		}
+		if (parser_state.utf8_malformed) {
+			data.position(data.limit());
+			if (errorMessage == null) {
+				errorMessage = "Malformed UTF-8 sequence in XML stream";
+			}
+		}
+	}
+
+	/**
+	 * Parses data up to the next event.
+	 *
+	 * @return the next event, <code>NEED_INPUT</code> if all data fed so far
+	 * has been parsed or <code>ERROR</code> if data is not correct <em>XML</em>.
+	 */
+	public Event next() {
+		if (event == Event.END_ELEMENT) {
+			--depth;
+		}
+		event = nextEvent();
+		if (event == Event.START_ELEMENT) {
+			++depth;
+		}
+
+		return event;
+	}
+
+	/**
+	 * Skips content of the current element. Content is only checked for
+	 * correctness, as for the <code>SKIP</code> directive of
+	 * {@link SimpleSkipHandler}, no events are delivered for it and the next
+	 * event returned for the element is its <code>END_ELEMENT</code>. The method
+	 * may be called only just after <code>START_ELEMENT</code> event.
+	 *
+	 * @throws IllegalStateException if the current event is not
+	 * <code>START_ELEMENT</code>
+	 */
+	public void skipElement() {
+		if (event != Event.START_ELEMENT) {
+			throw new IllegalStateException("skipElement() called for event: " + event);
+		}
+		if (events_count > 0) {
+
+			// Empty element, its end is already waiting
+			return;
+		}
+		parser_state.element_name.set(handler.name);
+		parser_state.startSkip(handler.name);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns number of attributes of the current element.
+	 *
+	 * @return number of attributes
+	 */
+	public int getAttributeCount() {
+		return handler.attr_count;
+	}
+
+	/**
+	 * Returns name of the attribute at the given position.
+	 *
+	 * @param index of the attribute
+	 *
+	 * @return canonical attribute name
+	 */
+	public String getAttributeName(int index) {
+		CharSlice name = handler.attr_names[index];
+
+		return symbols.intern(name.array(), name.offset(), name.length());
+	}
+
+	/**
+	 * Returns value of the attribute at the given position.
+	 *
+	 * @param index of the attribute
+	 *
+	 * @return attribute value
+	 */
+	public String getAttributeValue(int index) {
+		return handler.attr_values[index].toString();
+	}
+
+	/**
+	 * Returns value of the current element attribute with given name.
+	 *
+	 * @param name of the attribute
+	 *
+	 * @return attribute value or <code>null</code> if there is no such attribute
+	 */
+	public String getAttributeValue(String name) {
+		for (int i = 0; i < handler.attr_count; i++) {
+			if (handler.attr_names[i].contentEquals(name)) {
+				return handler.attr_values[i].toString();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns depth of the current element, top level elements have depth 1.
+	 *
+	 * @return current element depth
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns description of the parsing error.
+	 *
+	 * @return error message or <code>null</code>
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * Returns name of the current element.
+	 *
+	 * @return canonical element name
+	 */
+	public String getName() {
+		CharSlice name = handler.name;
+
+		return symbols.intern(name.array(), name.offset(), name.length());
+	}
+
+	/**
+	 * Returns current character data.
+	 *
+	 * @return character data slice
+	 */
+	public CharSlice getText() {
+		return handler.cdata;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private void ensureCapacity(int len) {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit   -= position;
+			position = 0;
+		}
+		if (limit + len > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(limit + len, buffer.length * 2));
+		}
+	}
+
+	private Event nextEvent() {
+		if (events_count > 0) {
+			return pollEvent();
+		}
+		if (errorMessage != null) {
+			return Event.ERROR;
+		}
+		if (position < limit) {
+			int stop = parser.parse(handler, parser_state, buffer, position, limit);
+
+			if (stop < 0) {
+				return Event.ERROR;
+			}
+			position = stop;
+			if (events_count > 0) {
+				return pollEvent();
+			}
+		}
+		if (parser_state.state == SimpleParser.State.ERROR) {
+			errorMessage = parser_state.errorMessage;
+
+			return Event.ERROR;
+		}
+
+		return Event.NEED_INPUT;
+	}
+
+	private Event pollEvent() {
+		Event result = events[events_head];
+
+		events_head = (events_head + 1) % events.length;
+		--events_count;
+
+		return result;
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private class CursorHandler
+					implements SimpleSliceHandler {
+		private int attr_count = 0;
+		private CharSlice[] attr_names = null;
+		private CharSlice[] attr_values = null;
+		private CharSlice cdata = null;
+		private CharSlice name = null;
+
+		/** Names of open elements, the innermost last */
+		private char[] open_names = new char[64];
+		private int open_names_len = 0;
+		private int[] open_name_starts = new int[8];
+		private int open_count = 0;
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public void elementCData(CharSlice cdata) {
+			this.cdata = cdata;
+			addEvent(Event.TEXT);
+		}
+
+		@Override
+		public boolean endElement(CharSlice name) {
+			if (!closeName(name)) {
+				return false;
+			}
+			this.name = name;
+			addEvent(Event.END_ELEMENT);
+
+			return true;
+		}
+
+		@Override
+		public void error(String errorMessage) {
+			XMLCursor.this.errorMessage = errorMessage;
+		}
+
+		@Override
+		public void otherXML(CharSlice other) {
+
+			// Ignored
+		}
+
+		@Override
+		public Object restoreParserState() {
+			return parser_state;
+		}
+
+		@Override
+		public void saveParserState(Object state) {}
+
+		@Override
+		public void startElement(CharSlice name, CharSlice[] attr_names, CharSlice[] attr_values) {
+			this.name        = name;
+			this.attr_names  = attr_names;
+			this.attr_values = attr_values;
+			attr_count       = 0;
+			if (attr_names != null) {
+				while ((attr_count < attr_names.length) && (attr_names[attr_count] != null)) {
+					++attr_count;
+				}
+			}
+			openName(name);
+			addEvent(Event.START_ELEMENT);
+		}
+
+		private void addEvent(Event event) {
+			events[(events_head + events_count) % events.length] = event;
+			++events_count;
+			parser_state.paused = true;
+		}
+
+		/**
+		 * Removes name of the innermost open element if it matches the name of
+		 * the close tag.
+		 */
+		private boolean closeName(CharSlice name) {
+			if (open_count == 0) {
+				return false;
+			}
+
+			int start = open_name_starts[open_count - 1];
+			int len = name.length();
+
+			if (open_names_len - start != len) {
+				return false;
+			}
+			for (int i = 0; i < len; i++) {
+				if (open_names[start + i] != name.charAt(i)) {
+					return false;
+				}
+			}
+			--open_count;
+			open_names_len = start;
+
+			return true;
+		}
+
+		private void openName(CharSlice name) {
+			int len = name.length();
+
+			if (open_count == open_name_starts.length) {
+				open_name_starts = Arrays.copyOf(open_name_starts, open_count * 2);
+			}
+			if (open_names_len + len > open_names.length) {
+				open_names = Arrays.copyOf(open_names, Math.max(open_names_len + len, open_names.length * 2));
+			}
+			open_name_starts[open_count++] = open_names_len;
+			for (int i = 0; i < len; i++) {
+				open_names[open_names_len++] = name.charAt(i);
+			}
+		}
+	}
+}    // XMLCursor
@@ -27,6 +27,7 @@ package tigase.xml.db;
 //~--- non-JDK imports --------------------------------------------------------
 
 import tigase.xml.Element;
+import tigase.xml.ElementVisitor;
 import tigase.xml.XMLNodeIfc;
 
 //~--- JDK imports ------------------------------------------------------------
@@ -36,6 +37,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.StringTokenizer;
@@ -136,34 +138,7 @@ public class DBElement
 	public final String formatedString(int indent, int step) {
 		StringBuilder result = new StringBuilder();
 
-		result.append("\n");
-		for (int i = 0; i < indent; i++) {
-			result.append(" ");
-		}
-		result.append("<" + name);
-		if (attributes != null) {
-			for (String key : attributes.keySet()) {
-				result.append(" " + key + "=\"" + attributes.get(key) + "\"");
-			}    // end of for ()
-		}      // end of if (attributes != null)
-
-		String childrenStr = childrenFormatedString(indent + step, step);
-		String cdata       = getCData();
-
-		if ((cdata != null) || (childrenStr.length() > 0)) {
-			result.append(">");
-			if (cdata != null) {
-				result.append(cdata.trim());
-			}    // end of if (cdata != null)
-			result.append(childrenStr);
-			result.append("\n");
-			for (int i = 0; i < indent; i++) {
-				result.append(" ");
-			}
-			result.append("</" + name + ">");
-		} else {
-			result.append("/>");
-		}
+		accept(new Formatter(result, indent, step));
 
 		return result.toString();
 	}
@@ -181,10 +156,12 @@ public class DBElement
 		StringBuilder result = new StringBuilder();
 
 		if (children != null) {
+			Formatter formatter = new Formatter(result, indent, step);
+
 			synchronized (children) {
 				for (XMLNodeIfc child : children) {
 					if (child instanceof DBElement) {
-						result.append(((DBElement) child).formatedString(indent, step));
+						((DBElement) child).accept(formatter);
 					} else {
 						result.append(child.toString());
 					}
@@ -808,6 +785,94 @@ public class DBElement
 //  public int hashCode() {
 // return getAttribute("name").hashCode();
 //  }
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Formats tree of <code>DBElement</code>s with each element in a separate
+	 * indented line, other nodes are written as they are.
+	 */
+	private static class Formatter
+					implements ElementVisitor {
+		private int depth = 0;
+		private final int indent;
+		private final StringBuilder result;
+		private int[] starts = new int[8];
+		private final int step;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Formatter(StringBuilder result, int indent, int step) {
+			this.result = result;
+			this.indent = indent;
+			this.step   = step;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public boolean enter(Element element) {
+			if (!(element instanceof DBElement)) {
+				result.append(element.toString());
+
+				return false;
+			}
+
+			DBElement elem = (DBElement) element;
+
+			result.append("\n");
+			appendIndent();
+			result.append("<").append(elem.getName());
+			if (elem.attributes != null) {
+				for (String key : elem.attributes.keySet()) {
+					result.append(" ").append(key).append("=\"").append(elem.attributes.get(key)).append(
+							"\"");
+				}    // end of for ()
+			}      // end of if (attributes != null)
+
+			String cdata = elem.getCData();
+
+			result.append(">");
+			if (cdata != null) {
+				result.append(cdata.trim());
+			}    // end of if (cdata != null)
+			if (depth == starts.length) {
+				starts = Arrays.copyOf(starts, depth * 2);
+			}
+
+			// Position of the end of start tag, if nothing follows it the element is empty
+			starts[depth++] = (cdata != null)
+					? -1
+					: result.length();
+
+			return true;
+		}
+
+		@Override
+		public void leave(Element element) {
+			int start = starts[--depth];
+
+			if (start == result.length()) {
+				result.setLength(start - 1);
+				result.append("/>");
+			} else {
+				result.append("\n");
+				appendIndent();
+				result.append("</").append(element.getName()).append(">");
+			}
+		}
+
+		@Override
+		public void text(XMLNodeIfc node) {
+			result.append(node.toString());
+		}
+
+		private void appendIndent() {
+			for (int i = indent + depth * step; i > 0; i--) {
+				result.append(" ");
+			}
+		}
+	}
 }    // DBElement
 
 
@@ -36,9 +36,23 @@ import org.junit.Test;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 /**
  * Simple tests for Element class
@@ -426,6 +440,521 @@ public class ElementTest
 		assertNull(parent.getAttributeStaticStr(p_att_name));
 	}
 
+	/**
+	 * Test of attributes storage of class Element.
+	 */
+	@Test
+	public void testAttributesOrder() {
+		Element elem = new Element("elem");
+
+		for (int i = 0; i < 20; i++) {
+			elem.setAttribute("a" + i, "v" + i);
+		}
+		elem.setAttribute("a3", "changed");
+		elem.removeAttribute("a0");
+		elem.removeAttribute("a19");
+		for (int i = 1; i < 19; i++) {
+			assertEquals((i == 3) ? "changed" : "v" + i, elem.getAttributeStaticStr(("a" + i).intern()));
+		}
+		assertNull(elem.getAttributeStaticStr("a0"));
+		assertEquals(18, elem.getAttributes().size());
+		assertEquals("a1", elem.getAttributes().keySet().iterator().next());
+		assertTrue(elem.toString().startsWith("<elem a1=\"v1\" a2=\"v2\" a3=\"changed\" a4=\"v4\""));
+
+		for (int i = 1; i < 15; i++) {
+			elem.removeAttribute("a" + i);
+		}
+		assertEquals("<elem a15=\"v15\" a16=\"v16\" a17=\"v17\" a18=\"v18\"/>", elem.toString());
+		assertEquals("v16", elem.getAttributeStaticStr("a16"));
+
+		Element copy = elem.clone();
+
+		copy.setAttribute("a16", "copy");
+		assertEquals("v16", elem.getAttributeStaticStr("a16"));
+		try {
+			elem.attributes.put("a1", null);
+			fail("Null attribute value accepted");
+		} catch (NullPointerException e) {}
+	}
+
+	/**
+	 * Test of serialized form cache of class Element.
+	 */
+	@Test
+	public void testCacheSerialized() {
+		parent.setCacheSerialized(true);
+
+		String str = parent.toString();
+
+		assertSame(str, parent.toString());
+
+		StringBuilder sb = new StringBuilder("<wrap>");
+
+		parent.toString(sb);
+		assertEquals("<wrap>" + str, sb.toString());
+
+		child.setAttribute("extra", "1");
+		assertFalse(str.equals(parent.toString()));
+		assertTrue(parent.toString().contains("extra=\"1\""));
+
+		Element copy = parent.clone();
+
+		assertSame(parent.toString(), copy.toString());
+		copy.setAttribute("to", "a@b");
+		copy.getChild("child").setCData("other");
+		assertFalse(parent.toString().contains("to=\"a@b\""));
+		assertTrue(copy.toString().contains("to=\"a@b\""));
+		assertTrue(copy.toString().contains(">other<"));
+		assertTrue(parent.toString().contains(value));
+
+		parent.removeChild(child);
+		assertEquals("<parent " + p_att_name + "=\"" + p_att_value + "\"/>", parent.toString());
+		child.setCData("detached");
+		assertEquals("<parent " + p_att_name + "=\"" + p_att_value + "\"/>", parent.toString());
+
+		// Child added to two parents
+		Element p1 = new Element("p1");
+		Element p2 = new Element("p2");
+		Element c = new Element("c");
+
+		p1.setCacheSerialized(true);
+		p2.setCacheSerialized(true);
+		p1.addChild(c);
+		assertEquals("<p1><c/></p1>", p1.toString());
+		p2.addChild(c);
+		assertEquals("<p1><c/></p1>", p1.toString());
+		c.setAttribute("k", "v");
+		assertEquals("<p1><c k=\"v\"/></p1>", p1.toString());
+		assertEquals("<p2><c k=\"v\"/></p2>", p2.toString());
+		c.addChild(new Element("d"));
+		assertEquals("<p1><c k=\"v\"><d/></c></p1>", p1.toString());
+		assertEquals("<p2><c k=\"v\"><d/></c></p2>", p2.toString());
+	}
+
+	/**
+	 * Test of writeTo methods of class Element.
+	 */
+	@Test
+	public void testWriteTo() throws Exception {
+		Element elem = new Element("message", new String[] { "to", "from" },
+				new String[] { "\u017c\u00f3\u0142w@example.com", "a@b" });
+
+		elem.addChild(new Element("body", "Za\u017c\u00f3\u0142\u0107 &amp; " + new String(Character.toChars(0x1F600))));
+		elem.addChild(new Element("x", new String[] { "xmlns" }, new String[] { "jabber:x:\u20ac" }));
+		elem.addChild(parent.clone());
+
+		byte[] expected = elem.toString().getBytes(StandardCharsets.UTF_8);
+
+		for (int size = 1; size < 8; size++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			ElementWriter writer = elem.writeTo(buf);
+
+			out.write(buf.array(), 0, buf.position());
+			while (writer != null) {
+				buf.clear();
+
+				boolean complete = writer.writeTo(buf);
+
+				assertTrue(complete || (buf.position() > 0));
+				out.write(buf.array(), 0, buf.position());
+				if (complete) {
+					writer = null;
+				}
+			}
+			assertTrue(Arrays.equals(expected, out.toByteArray()));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		elem.writeTo(out);
+		assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+		StringWriter writer = new StringWriter();
+
+		elem.writeTo(writer);
+		assertEquals(elem.toString(), writer.toString());
+
+		elem.setCacheSerialized(true);
+		assertNull(elem.writeTo(ByteBuffer.allocate(expected.length)));
+		out.reset();
+		elem.writeTo(out);
+		assertTrue(Arrays.equals(expected, out.toByteArray()));
+	}
+
+	/**
+	 * Test of clone method sharing attributes, of class Element.
+	 */
+	@Test
+	public void testCloneSharing() {
+		Element held = parent.getChild("child");
+		Element deep = parent.clone();
+
+		assertNotSame(parent.children, deep.children);
+		assertNotSame(held, deep.getChild("child"));
+		held.setCData("changed");
+		assertEquals(value, deep.getChildCData(static_str_arr));
+		held.setCData(value);
+
+		Element copy = parent.clone();
+
+		assertSame(parent.attributes, copy.attributes);
+		copy.setAttribute("to", "a@b");
+		assertNotSame(parent.attributes, copy.attributes);
+		assertNull(parent.getAttributeStaticStr("to"));
+
+		copy.getChild("child").setAttribute(c_att_name, "changed");
+		assertEquals(c_att_value, parent.getChild("child").getAttributeStaticStr(c_att_name));
+		assertEquals("changed", copy.getChild("child").getAttributeStaticStr(c_att_name));
+
+		Element third = new Element(parent);
+
+		third.addChild(new Element("extra"));
+		assertNull(parent.getChild("extra"));
+		assertEquals(value, third.getChildCData(static_str_arr));
+	}
+
+	/**
+	 * Test of children list of class Element.
+	 */
+	@Test
+	public void testChildList() {
+		Element elem = new Element("elem");
+
+		for (int i = 0; i < 10; i++) {
+			elem.addChild(new Element("c" + i));
+		}
+		assertEquals(10, elem.getChildren().size());
+		assertTrue(elem.removeChild(elem.getChild("c0")));
+		assertTrue(elem.removeChild(elem.getChild("c5")));
+		assertEquals("c1", elem.getChildren().get(0).getName());
+		assertEquals("c6", elem.getChildren().get(4).getName());
+
+		Element copy = elem.clone();
+
+		copy.getChild("c1").setCData("changed");
+		copy.addChild(new Element("c10"));
+		assertNull(elem.getChild("c1").getCData());
+		assertNull(elem.getChild("c10"));
+		assertEquals(elem.getChildren().size() + 1, copy.getChildren().size());
+		assertEquals("<elem><c1/><c2/><c3/><c4/><c6/><c7/><c8/><c9/></elem>", elem.toString());
+	}
+
+	/**
+	 * Test of children views of class Element.
+	 */
+	@Test
+	public void testChildViews() {
+		Element elem = new Element("elem");
+
+		assertEquals(0, elem.childCount());
+		assertFalse(elem.childElements().iterator().hasNext());
+		assertEquals(0, elem.childElementStream().count());
+		elem.addChild(new CData("text"));
+		for (int i = 0; i < 10; i++) {
+			elem.addChild(new Element("c" + i));
+			elem.addChild(new CData("text" + i));
+		}
+		assertEquals(21, elem.childCount());
+		assertEquals("text", elem.childAt(0).toString());
+		assertEquals("c0", ((Element) elem.childAt(1)).getName());
+
+		int count = 0;
+
+		for (Element child : elem.childElements()) {
+			assertEquals("c" + count++, child.getName());
+		}
+		assertEquals(10, count);
+
+		Iterator<Element> it = elem.childElements().iterator();
+
+		it.next();
+		try {
+			it.remove();
+			fail("View of children must be read-only");
+		} catch (UnsupportedOperationException ex) {}
+		assertEquals(elem.getChildren(), elem.childElementStream().collect(Collectors.toList()));
+		assertEquals(elem.getChildren(), elem.childElementStream().parallel().collect(Collectors
+				.toList()));
+
+		// Views and childAt() return the same child objects
+		assertSame(elem.childAt(1), elem.childElements().iterator().next());
+		assertSame(elem.childAt(1), elem.childElementStream().findFirst().get());
+
+		Element copy = elem.clone();
+
+		copy.childElementStream().findFirst().get().setCData("changed");
+		assertNull(elem.getChild("c0").getCData());
+		copy.childElements().iterator().next().setAttribute("changed", "true");
+		assertNull(elem.getChild("c0").getAttributeStaticStr("changed"));
+		assertEquals("true", copy.getChild("c0").getAttributeStaticStr("changed"));
+	}
+
+	/**
+	 * Test of accept method and serialization of deep trees, of class Element.
+	 */
+	@Test
+	public void testVisitor() {
+		int depth = 100000;
+		Element deep = new Element("e");
+
+		for (int i = 1; i < depth; i++) {
+			Element elem = new Element("e");
+
+			elem.addChild(deep);
+			deep = elem;
+		}
+
+		String str = deep.toString();
+
+		assertEquals((depth - 1) * "<e></e>".length() + "<e/>".length(), str.length());
+		assertEquals((depth - 1) * "<e>".length(), str.indexOf("<e/>"));
+		assertEquals(str, deep.toStringSecure());
+		assertEquals(str, deep.clone().toString());
+		assertEquals(str.replace(">", ">\n"), deep.toStringPretty());
+
+		final StringBuilder events = new StringBuilder();
+
+		parent.addChild(new Element("skip", new Element[] { new Element("hidden") }, null, null));
+		parent.accept(new ElementVisitor() {
+			@Override
+			public boolean enter(Element element) {
+				events.append("+").append(element.getName());
+
+				return element.getName() != "skip";
+			}
+
+			@Override
+			public void leave(Element element) {
+				events.append("-").append(element.getName());
+			}
+
+			@Override
+			public void text(XMLNodeIfc node) {
+				events.append("#").append(node.toString());
+			}
+		});
+		assertEquals("+parent+child#" + value + "-child+skip-parent", events.toString());
+	}
+
+	/**
+	 * Test of descendant streams and parallel methods, of class Element.
+	 */
+	@Test
+	public void testParallelStreams() {
+		Element root = new Element("root");
+		Element node = new Element("node");
+		final List<String> expected = new ArrayList<String>();
+
+		root.addChild(new CData("text"));
+		root.addChild(node);
+		expected.add("node");
+		for (int i = 0; i < 500; i++) {
+			Element item = new Element("item" + i);
+
+			expected.add(item.getName());
+			for (int j = 0; j < i % 4; j++) {
+				item.addChild(new Element("sub" + i + "-" + j));
+				item.addChild(new CData("text"));
+				expected.add("sub" + i + "-" + j);
+			}
+			node.addChild(item);
+		}
+		root.addChild(new Element("last"));
+		expected.add("last");
+
+		assertEquals(expected, root.descendantStream().map(Element::getName).collect(Collectors
+				.toList()));
+		assertEquals(expected, root.parallelDescendantStream().map(Element::getName).collect(Collectors
+				.toList()));
+		assertEquals(expected.size(), root.parallelDescendantStream().count());
+
+		// Split until nothing can be split and check order of all parts
+		List<String> names = new ArrayList<String>();
+		Spliterator<Element> spliterator = DescendantSpliterator.parallel(root);
+
+		assertEquals(expected.size(), spliterator.estimateSize());
+		splitAll(spliterator, names);
+		assertEquals(expected, names);
+
+		assertEquals(node.findChildren(el -> el.getChild("sub1-0") != null), node.parallelFindChildren(
+				el -> el.getChild("sub1-0") != null));
+		assertEquals(node.mapChildren(el -> el.childCount()), node.parallelMapChildren(null,
+				el -> el.childCount()));
+
+		Element copy = root.clone();
+
+		copy.parallelDescendantStream().forEach(el -> el.setAttribute("changed", "true"));
+		assertEquals(0, root.descendantStream().filter(el -> el.getAttributeStaticStr("changed")
+				!= null).count());
+		assertEquals(expected.size(), copy.descendantStream().filter(el -> el.getAttributeStaticStr(
+				"changed") != null).count());
+		assertEquals(0, new Element("empty").parallelDescendantStream().count());
+	}
+
+	private static void splitAll(Spliterator<Element> spliterator, List<String> names) {
+		long size = spliterator.estimateSize();
+		Spliterator<Element> prefix = spliterator.trySplit();
+
+		if (prefix == null) {
+			spliterator.forEachRemaining(el -> names.add(el.getName()));
+		} else {
+			assertEquals(size, prefix.estimateSize() + spliterator.estimateSize());
+			assertTrue(prefix.estimateSize() > 0);
+			splitAll(prefix, names);
+			splitAll(spliterator, names);
+		}
+	}
+
+	/**
+	 * Test of findChild and related methods using ElementPath, of class Element.
+	 */
+	@Test
+	public void testElementPath() {
+		assertEquals(child, parent.findChild(ElementPath.compile(str_path)));
+		assertEquals(child, parent.findChild(ElementPath.compile(str_slash_path)));
+		assertEquals(child, parent.findChild(ElementPath.compile(static_str_arr)));
+		assertEquals(value, parent.getChildCData(ElementPath.compile(str_path)));
+		assertEquals(xmlns, parent.getXMLNS(ElementPath.compile(str_path)));
+		assertEquals(c_att_value, parent.getAttributeStaticStr(ElementPath.compile(str_path),
+				c_att_name));
+		assertNull(parent.findChild(ElementPath.compile("other/child")));
+		assertNull(parent.findChild(ElementPath.compile("parent/other")));
+
+		Element other = new Element("child", new String[] { "xmlns", "type" }, new String[] {
+				"http://jabber.org/protocol/disco#info", "result" });
+
+		parent.addChild(other);
+		assertSame(other, parent.findChild(ElementPath.compile(
+				"/parent/child[xmlns=http://jabber.org/protocol/disco#info]")));
+		assertSame(other, parent.findChild(ElementPath.compile("/parent/child[type=result]")));
+		assertSame(other, parent.findChild(ElementPath.compile("/parent/child[type]")));
+		assertNull(parent.findChild(ElementPath.compile("/parent/child[type=error]")));
+		assertEquals(c_att_value, parent.getAttributeStaticStr(ElementPath.compile("parent/child[xmlns=" +
+				xmlns + "][" + c_att_name + "=" + c_att_value + "]"), c_att_name));
+		assertEquals("/parent/child[type]", ElementPath.compile("/parent/child[type]").toString());
+
+		for (String path : new String[] { "", "/", "parent/[a]", "parent/child[a", "parent/child[a]b" }) {
+			try {
+				ElementPath.compile(path);
+				fail("Path should not compile: " + path);
+			} catch (IllegalArgumentException ex) {}
+		}
+	}
+
+	/**
+	 * Test of ElementClassifier with rules for elements and their children.
+	 */
+	@Test
+	public void testElementClassifier() {
+		ElementClassifier classifier = new ElementClassifier();
+		int parentRule = classifier.addRule("parent");
+		int childRule  = classifier.addRule("/parent/child[xmlns=" + xmlns + "]");
+		int attRule    = classifier.addRule("parent[" + p_att_name + "=" + p_att_value + "]/child");
+		int otherNs    = classifier.addRule("parent/child[xmlns=other]");
+		int otherAtt   = classifier.addRule("parent[" + p_att_name + "=other]");
+		int deepRule   = classifier.addRule("parent/child/item[type=result]");
+		int matcher    = classifier.addRule(el -> el.getChild("child") != null);
+		int message    = classifier.addRule("message");
+
+		assertEquals(8, classifier.getRulesCount());
+
+		BitSet result = classifier.classify(parent);
+
+		assertEquals(new BitSet(), classifier.classify(new Element("presence")));
+		assertTrue(result.get(parentRule));
+		assertTrue(result.get(childRule));
+		assertTrue(result.get(attRule));
+		assertTrue(result.get(matcher));
+		assertFalse(result.get(otherNs));
+		assertFalse(result.get(otherAtt));
+		assertFalse(result.get(deepRule));
+		assertFalse(result.get(message));
+
+		Element second = new Element("child", new Element[] { new Element("item", new String[] {
+				"type" }, new String[] { "result" }) }, null, null);
+
+		parent.addChild(second);
+		result.clear();
+		classifier.classify(parent, result);
+		assertTrue(result.get(deepRule));
+		assertTrue(result.get(childRule));
+		assertEquals(5, result.cardinality());
+
+		// Rules match any branch, paths follow the first matching child
+		Element iq = new Element("iq", new Element[] { new Element("query"), new Element("query",
+				new Element[] { new Element("item") }, null, null) }, null, null);
+		int itemRule = classifier.addRule("iq/query/item");
+
+		assertTrue(classifier.classify(iq).get(itemRule));
+		assertNull(iq.findChild(ElementPath.compile("iq/query/item")));
+		assertNull(iq.findChild(new String[] { "iq", "query", "item" }));
+	}
+
+	/**
+	 * Test of equals, hashCode and compareTo methods, of class Element.
+	 */
+	@Test
+	public void testEqualsHashCode() {
+		Element a = new Element("message", new String[] { "to", "type" }, new String[] { "a@b", "chat" });
+		Element b = new Element("message", new String[] { "type", "to" }, new String[] { "chat", "a@b" });
+
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(0, a.compareTo(b));
+		assertEquals(1, new TreeSet<Element>(Arrays.asList(a, b)).size());
+
+		a.addChild(new Element("body", "text"));
+		assertEquals(a, b);
+		assertFalse(a.equalsDeep(b));
+
+		b.addChild(new Element("body", "text"));
+		assertTrue(a.equalsDeep(b));
+		assertEquals(a.hashCodeDeep(), b.hashCodeDeep());
+
+		int hash = a.hashCode();
+
+		a.setAttribute("id", "1");
+		assertFalse(a.equals(b));
+		assertFalse(hash == a.hashCode());
+		assertTrue(a.compareTo(b) != 0);
+		assertEquals(-Integer.signum(a.compareTo(b)), Integer.signum(b.compareTo(a)));
+
+		Element c = new Element("body");
+
+		c.addChild(new CData("te"));
+		c.addChild(new Element("x"));
+		c.addChild(new CData("xt"));
+		assertEquals(new Element("body", "text"), c);
+		assertEquals(new Element("body", "text").hashCode(), c.hashCode());
+		assertEquals(new Element("body"), new Element("body", ""));
+		assertFalse(new Element("body", "text").equals(new Element("body", "other")));
+
+		Element[] elems = { a, b, c, new Element("body"), new Element("body", "text"), new Element("bod"),
+				new Element("body", "tex"), new Element("body", new String[] { "a" }, new String[] { "" }),
+				new Element("body", new String[] { "a" }, new String[] { "1" }), new Element("message") };
+
+		for (Element x : elems) {
+			for (Element y : elems) {
+				assertEquals(x.equals(y), x.compareTo(y) == 0);
+				assertEquals(-Integer.signum(x.compareTo(y)), Integer.signum(y.compareTo(x)));
+				if ((x != a) && (x != b) && (y != a) && (y != b)) {
+
+					// Attributes of other elements are set in name order
+					assertEquals(x.toStringNoChildren().compareTo(y.toStringNoChildren()), x.compareTo(y));
+				}
+			}
+		}
+
+		Element m1 = new Element("m", new String[] { "a", "b" }, new String[] { "1", "2" });
+		Element m2 = new Element("m", new String[] { "b", "a" }, new String[] { "2", "1" });
+
+		assertEquals(new HashSet<Element>(Arrays.asList(m1, m2)).size(), new TreeSet<Element>(
+				Arrays.asList(m1, m2)).size());
+		assertEquals("<m a=\"1\"/>".compareTo(m1.toStringNoChildren()), new Element("m", new String[] { "a" },
+				new String[] { "1" }).compareTo(m2));
+	}
+
 	/**
 	 * Test of removeChild method, of class Element.
 	 */
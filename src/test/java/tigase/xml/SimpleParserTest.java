@@ -22,6 +22,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -304,6 +309,877 @@ public class SimpleParserTest {
 
 	}
 
+	@Test
+	public void testParseByteBuffer() {
+		String input = "<message to=\"łódź@example.com\" id=\"ü1\"><body>Zażółć gęślą jaźń € "
+				+ new String(Character.toChars(0x1F600)) + " &amp; done</body></message>";
+		byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+		for (int split = 1; split < bytes.length; split++) {
+			for (boolean direct : new boolean[]{false, true}) {
+				final AtomicBoolean error = new AtomicBoolean(false);
+				DomBuilderHandler handler = new DomBuilderHandlerImpl(error);
+
+				parser.parse(handler, wrap(bytes, 0, split, direct));
+				parser.parse(handler, wrap(bytes, split, bytes.length, direct));
+				assertFalse(error.get());
+
+				Element el = handler.getParsedElements().poll();
+				assertNotNull(el);
+				assertEquals("łódź@example.com", el.getAttributeStaticStr("to"));
+				assertEquals("Zażółć gęślą jaźń € " + new String(Character.toChars(0x1F600)) + " &amp; done",
+						el.getChildCData(new String[]{"message", "body"}));
+			}
+		}
+	}
+
+	@Test
+	public void testParseByteBufferMalformed() {
+		final AtomicBoolean error = new AtomicBoolean(false);
+		DomBuilderHandler handler = new DomBuilderHandlerImpl(error);
+
+		// overlong encoding of '<'
+		ByteBuffer data = ByteBuffer.wrap(new byte[]{'<', 'a', '>', (byte) 0xC0, (byte) 0xBC, '<', '/', 'a', '>'});
+		parser.parse(handler, data);
+		assertTrue(error.get());
+		assertFalse(data.hasRemaining());
+		assertTrue(handler.getParsedElements().isEmpty());
+
+		handler = new DomBuilderHandlerImpl(error);
+		handler.saveParserState(null);
+		// UTF-8 encoded surrogate
+		parser.parse(handler, ByteBuffer.wrap(new byte[]{'<', 'a', '>', (byte) 0xED, (byte) 0xA0, (byte) 0x80}));
+		assertTrue(error.get());
+	}
+
+	@Test
+	public void testTextRunsSplitInput() {
+		String[] inputs = {
+				"<message to='a@b' id=\"x&amp;y\" type=\"chat\"><body>Some long text with &lt;markup&gt; inside, "
+						+ "tabs\tand\nnew lines \u00e9\u4e2d\ue000" + new String(Character.toChars(0x1F600))
+						+ " and more text</body><data>QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVo=</data></message>",
+				"<a x='it\"s' y=\"it's\">text<b/>tail</a>", "<a>text\u0001</a>", "<a x='1<2'/>"};
+
+		for (String input : inputs) {
+			char[] data = input.toCharArray();
+			RecordingHandler whole = new RecordingHandler();
+			RecordingHandler single = new RecordingHandler();
+
+			parser.parse(whole, data, 0, data.length);
+			for (int i = 0; i < data.length && !single.failed; i++) {
+				parser.parse(single, new char[]{data[i]}, 0, 1);
+			}
+			assertEquals(single.events.toString(), whole.events.toString());
+		}
+
+		parser.MAX_CDATA_SIZE = 10;
+		parser.MAX_ATTRIBUTE_VALUE_SIZE = 4;
+		for (String input : new String[]{"<a>0123456789</a>", "<a>01234567890</a>", "<a x='0123'/>",
+				"<a x=\"01234\"/>"}) {
+			char[] data = input.toCharArray();
+			RecordingHandler whole = new RecordingHandler();
+			RecordingHandler single = new RecordingHandler();
+
+			parser.parse(whole, data, 0, data.length);
+			if (!whole.failed) {
+				parser.parse(whole, new char[]{' '}, 0, 1);
+			}
+			for (int i = 0; i < data.length && !single.failed; i++) {
+				parser.parse(single, new char[]{data[i]}, 0, 1);
+			}
+			if (!single.failed) {
+				parser.parse(single, new char[]{' '}, 0, 1);
+			}
+			assertEquals(single.events.toString(), whole.events.toString());
+		}
+	}
+
+	@Test
+	public void testSliceHandler() {
+		String[] inputs = {
+				"<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' version='1.0'>",
+				"<message to='a@b' id=\"x&amp;y\"><body>Some text &lt;b&gt; \u00e9" + new String(Character.toChars(0x1F600))
+						+ "</body><x/><a/b c='d'/><e  f = 'g'  /></message >",
+				"<a b='1' c='2' d='3' e='4' f='5' g='6' h='7'>text</a>", "<a>text\u0001</a>"};
+
+		for (String input : inputs) {
+			char[] data = input.toCharArray();
+			RecordingHandler legacy = new RecordingHandler();
+			SliceRecordingHandler whole = new SliceRecordingHandler();
+			SliceRecordingHandler single = new SliceRecordingHandler();
+
+			parser.parse(legacy, data, 0, data.length);
+			parser.parse(whole, data, 0, data.length);
+			for (int i = 0; i < data.length && !single.failed; i++) {
+				parser.parse(single, new char[]{data[i]}, 0, 1);
+			}
+			assertEquals(legacy.events.toString(), whole.events.toString());
+			assertEquals(legacy.events.toString(), single.events.toString());
+		}
+
+		char[] data = "<message to='a@b'><body>text</body></message>".toCharArray();
+		SliceRecordingHandler handler = new SliceRecordingHandler();
+
+		parser.parse(handler, data, 0, data.length);
+		assertSame(data, handler.lastName.array());
+		assertSame(data, handler.lastCData.array());
+		assertEquals("text", handler.lastCData.toString());
+	}
+
+	@Test
+	public void testSymbolTableNames() {
+		SymbolTable symbols = new SymbolTable(16);
+		char[] chars = "xxmessagexx".toCharArray();
+
+		assertSame("message", symbols.intern(chars, 2, 7));
+		assertSame("message", symbols.intern(new StringBuilder("message"), 0, 7));
+		assertSame("message", symbols.intern(new String(chars, 2, 7)));
+
+		final AtomicBoolean error = new AtomicBoolean(false);
+		DomBuilderHandler handler = new DomBuilderHandler(new DefaultElementFactory(), symbols) {
+			@Override
+			public void error(String errorMessage) {
+				error.set(true);
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			char[] data = ("<stream:message xmlns:stream='jabber:client' to='a@b'><body>text</body></stream:message>")
+					.toCharArray();
+			parser.parse(handler, data, 0, data.length);
+			assertFalse(error.get());
+
+			Element el = handler.getParsedElements().poll();
+			assertSame("message", el.getName());
+			assertSame("jabber:client", el.getXMLNS());
+			assertEquals("a@b", el.getAttributeStaticStr("to"));
+			assertSame("body", el.getChildren().get(0).getName());
+		}
+	}
+
+	@Test
+	public void testCharacterClasses() {
+		String[] valid = {"<a\tb='1'\n/>", "<a>\t\r\n\u0020\ud7ff\ue000\ufffd" + new String(Character.toChars(0x10FFFF))
+				+ "</a>", "<a\r\nb='\u00e9'/>", "<\na/>"};
+		String[] invalid = {"<a>\u0000</a>", "<a>\u001f</a>", "<a>\ufffe</a>", "<a>\uffff</a>", "<a>\udc00</a>",
+				"<a b='\u0008'/>", "<a?/>", "<&a/>", "<a b&='1'/>"};
+
+		for (String input : valid) {
+			char[] data = (input + " ").toCharArray();
+			RecordingHandler handler = new RecordingHandler();
+			parser.parse(handler, data, 0, data.length);
+			assertFalse(input, handler.failed);
+			assertTrue(input, handler.events.indexOf("end:a") >= 0);
+		}
+		for (String input : invalid) {
+			char[] data = (input + " ").toCharArray();
+			RecordingHandler handler = new RecordingHandler();
+			parser.parse(handler, data, 0, data.length);
+			assertTrue(input, handler.failed);
+		}
+	}
+
+	@Test
+	public void testCDataChunks() {
+		parser.CDATA_CHUNK_SIZE = 8;
+		String text = "QUJDREVG&amp;R0hJSktMTU5PUFFSU1RVV" + new String(Character.toChars(0x1F600)) + "ldYWVo=0123456";
+		char[] data = ("<message><data>" + text + "</data><body>short</body></message>").toCharArray();
+
+		ChunkRecordingHandler whole = new ChunkRecordingHandler();
+		ChunkRecordingHandler single = new ChunkRecordingHandler();
+
+		parser.parse(whole, data, 0, data.length);
+		for (int i = 0; i < data.length; i++) {
+			parser.parse(single, new char[]{data[i]}, 0, 1);
+		}
+		for (ChunkRecordingHandler handler : new ChunkRecordingHandler[]{whole, single}) {
+			assertFalse(handler.failed);
+			assertEquals(text, handler.chunks.toString());
+			assertEquals(1, handler.lastChunks);
+			assertTrue(handler.maxChunk <= parser.CDATA_CHUNK_SIZE + 4);
+			assertTrue(handler.events.toString().contains("cdata:short\n"));
+		}
+
+		parser.MAX_CDATA_SIZE = 20;
+		ChunkRecordingHandler limited = new ChunkRecordingHandler();
+		parser.parse(limited, data, 0, data.length);
+		assertTrue(limited.failed);
+	}
+
+	@Test
+	public void testCursor() {
+		String input = "<stream:stream to='example.com' version='1.0'>"
+				+ "<message from='a@b/c' to='d@e' type='chat'><body>Hi &amp; bye</body><x/></message><iq type='get' id='1'";
+		char[] data = input.toCharArray();
+		XMLCursor cursor = new XMLCursor(parser, SymbolTable.getDefault());
+
+		assertEquals(XMLCursor.Event.NEED_INPUT, cursor.next());
+		cursor.feed(data, 0, 20);
+		assertEquals(XMLCursor.Event.NEED_INPUT, cursor.next());
+		cursor.feed(data, 20, data.length - 20);
+
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("stream:stream", cursor.getName());
+		assertEquals("example.com", cursor.getAttributeValue("to"));
+		assertEquals(1, cursor.getDepth());
+
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("message", cursor.getName());
+		assertEquals(2, cursor.getDepth());
+		assertEquals(3, cursor.getAttributeCount());
+		assertSame("from", cursor.getAttributeName(0));
+		assertEquals("a@b/c", cursor.getAttributeValue(0));
+		assertEquals("chat", cursor.getAttributeValue("type"));
+		assertNull(cursor.getAttributeValue("id"));
+
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("body", cursor.getName());
+		assertEquals(XMLCursor.Event.TEXT, cursor.next());
+		assertEquals("Hi &amp; bye", cursor.getText().toString());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("body", cursor.getName());
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("x", cursor.getName());
+		assertEquals(3, cursor.getDepth());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("message", cursor.getName());
+		assertEquals(XMLCursor.Event.NEED_INPUT, cursor.next());
+		assertEquals(1, cursor.getDepth());
+
+		cursor.feed(ByteBuffer.wrap("/><!-- --></stream:stream>".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("iq", cursor.getName());
+		assertEquals("1", cursor.getAttributeValue("id"));
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("stream:stream", cursor.getName());
+
+		cursor.feed("<a b='<'/>".toCharArray(), 0, 10);
+		assertEquals(XMLCursor.Event.ERROR, cursor.next());
+		assertNotNull(cursor.getErrorMessage());
+		assertEquals(XMLCursor.Event.ERROR, cursor.next());
+	}
+
+	@Test
+	public void testCursorEndTags() {
+		String[] malformed = { "<a><b></c></a>", "<a><b></b></ab>", "<a></a></a>" };
+
+		for (String input : malformed) {
+			XMLCursor cursor = new XMLCursor(parser, SymbolTable.getDefault());
+			XMLCursor.Event event;
+
+			cursor.feed(input.toCharArray(), 0, input.length());
+			while ((event = cursor.next()) != XMLCursor.Event.ERROR) {
+				assertNotEquals(input, XMLCursor.Event.NEED_INPUT, event);
+			}
+			assertNotNull(input, cursor.getErrorMessage());
+		}
+	}
+
+	@Test
+	public void testCursorSkipElement() {
+		String input = "<message to='d@e'><body a='>'>Hi<b>there</b><!-- </body> --></body><x/></message>"
+				+ "<iq/><iq><query><c></d></query></iq>";
+		char[] data = input.toCharArray();
+		XMLCursor cursor = new XMLCursor(parser, SymbolTable.getDefault());
+
+		cursor.feed(data, 0, 30);
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("message", cursor.getName());
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("body", cursor.getName());
+		cursor.skipElement();
+		assertEquals(XMLCursor.Event.NEED_INPUT, cursor.next());
+		cursor.feed(data, 30, data.length - 30);
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("body", cursor.getName());
+		assertEquals(2, cursor.getDepth());
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		assertSame("x", cursor.getName());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("message", cursor.getName());
+
+		// Empty element
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		cursor.skipElement();
+		assertEquals(XMLCursor.Event.END_ELEMENT, cursor.next());
+		assertSame("iq", cursor.getName());
+
+		// Skipped content is still checked
+		assertEquals(XMLCursor.Event.START_ELEMENT, cursor.next());
+		cursor.skipElement();
+		assertEquals(XMLCursor.Event.ERROR, cursor.next());
+
+		try {
+			cursor.skipElement();
+			fail("skipElement() allowed after ERROR");
+		} catch (IllegalStateException ex) {
+
+			// Expected
+		}
+	}
+
+	@Test
+	public void testStanzaFramer() {
+		String open = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' to='example.com'>";
+		String[] stanzas = {"<message to='a@b' from='c@d/e' type='chat' id='1'><body>a &amp; b > c</body>"
+				+ "<message><message x='/>'/></message><!-- x --></message>", "<presence/>",
+				"<iq type=\"get\" id='2'><query xmlns='jabber:iq:roster'/></iq>"};
+		String close = "</stream:stream>";
+		StringBuilder sb = new StringBuilder(open);
+		for (String stanza : stanzas) {
+			sb.append(stanza).append(' ');
+		}
+		sb.append(close);
+		String input = sb.toString();
+		char[] data = input.toCharArray();
+
+		for (int split = 1; split < data.length; split += 7) {
+			StanzaFramer framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to", "type");
+			List<String> frames = new ArrayList<String>();
+			framer.feed(data, 0, split);
+			collectFrames(framer, frames);
+			framer.feed(data, split, data.length - split);
+			collectFrames(framer, frames);
+
+			assertEquals(5, frames.size());
+			assertEquals("STREAM_START:stream:stream:" + open.substring(open.indexOf("<stream")), frames.get(0));
+			for (int i = 0; i < stanzas.length; i++) {
+				assertEquals("STANZA:" + new String[]{"message", "presence", "iq"}[i] + ":" + stanzas[i], frames.get(i + 1));
+			}
+			assertEquals("STREAM_END:stream:stream:" + close, frames.get(4));
+		}
+
+		StanzaFramer framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to", "type");
+		framer.feed(data, 0, data.length);
+		assertEquals(StanzaFramer.Frame.STREAM_START, framer.next());
+		assertEquals("example.com", framer.getAttribute("to"));
+		assertEquals(StanzaFramer.Frame.STANZA, framer.next());
+		assertEquals("a@b", framer.getAttribute("to"));
+		assertEquals("chat", framer.getAttribute("type"));
+		assertNull(framer.getAttribute("from"));
+		assertEquals(input.indexOf("<message"), framer.getOffset());
+		assertEquals(stanzas[0].length(), framer.getLength());
+
+		framer = new StanzaFramer(parser, SymbolTable.getDefault(), 10, "to");
+		char[] big = "<message><body>0123456789</body></message>".toCharArray();
+		framer.feed(big, 0, big.length);
+		assertEquals(StanzaFramer.Frame.ERROR, framer.next());
+
+		framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to");
+		char[] bad = "<message><body a='<'/></message>".toCharArray();
+		framer.feed(bad, 0, bad.length);
+		assertEquals(StanzaFramer.Frame.ERROR, framer.next());
+
+		framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to");
+		bad = "<message><a></b></message>".toCharArray();
+		framer.feed(bad, 0, bad.length);
+		assertEquals(StanzaFramer.Frame.ERROR, framer.next());
+	}
+
+	@Test
+	public void testStanzaFramerRestart() {
+		String first = "<stream:stream xmlns='jabber:client' to='example.com'>";
+		String second = "<stream:stream xmlns='jabber:client' to='example.org'>";
+		char[] data = (first + "<starttls/>" + second + "<presence/></stream:stream>").toCharArray();
+
+		for (int split = 1; split < data.length; split += 5) {
+			StanzaFramer framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to");
+			List<String> frames = new ArrayList<String>();
+			framer.feed(data, 0, split);
+			collectFrames(framer, frames);
+			framer.feed(data, split, data.length - split);
+			collectFrames(framer, frames);
+
+			assertEquals(5, frames.size());
+			assertEquals("STREAM_START:stream:stream:" + first, frames.get(0));
+			assertEquals("STANZA:starttls:<starttls/>", frames.get(1));
+			assertEquals("STREAM_START:stream:stream:" + second, frames.get(2));
+			assertEquals("STANZA:presence:<presence/>", frames.get(3));
+			assertEquals("STREAM_END:stream:stream:</stream:stream>", frames.get(4));
+		}
+
+		StanzaFramer framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to");
+		char[] bad = (first + "<presence/></message>").toCharArray();
+		framer.feed(bad, 0, bad.length);
+		assertEquals(StanzaFramer.Frame.STREAM_START, framer.next());
+		assertEquals(StanzaFramer.Frame.STANZA, framer.next());
+		assertEquals(StanzaFramer.Frame.ERROR, framer.next());
+		assertNotNull(framer.getErrorMessage());
+	}
+
+	@Test
+	public void testStanzaFramerByteOffsets() {
+		String input = "<stream:stream to='ex\u00e4mple.com'> <message to='\u017c\u00f3\u0142w@b'>"
+				+ "<body>\u20ac \ud83d\ude00</body></message>\u00a0<presence/></stream:stream>";
+		byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+		for (int chunk = 1; chunk < bytes.length; chunk += 5) {
+			StanzaFramer framer = new StanzaFramer(parser, SymbolTable.getDefault(), 1024, "to");
+			List<String> frames = new ArrayList<String>();
+			StanzaFramer.Frame frame;
+
+			for (int off = 0; off < bytes.length; off += chunk) {
+				framer.feed(ByteBuffer.wrap(bytes, off, Math.min(chunk, bytes.length - off)));
+				while ((frame = framer.next()) != StanzaFramer.Frame.NEED_INPUT) {
+					assertNotEquals(framer.getErrorMessage(), StanzaFramer.Frame.ERROR, frame);
+
+					String raw = new String(bytes, (int) framer.getByteOffset(), framer.getByteLength(),
+							StandardCharsets.UTF_8);
+
+					assertEquals(framer.getFrame().toString(), raw);
+					frames.add(raw);
+				}
+			}
+			assertEquals(4, frames.size());
+			assertEquals("<presence/>", frames.get(2));
+		}
+	}
+
+	private static void collectFrames(StanzaFramer framer, List<String> frames) {
+		StanzaFramer.Frame frame;
+		while ((frame = framer.next()) != StanzaFramer.Frame.NEED_INPUT) {
+			assertNotEquals(framer.getErrorMessage(), StanzaFramer.Frame.ERROR, frame);
+			frames.add(frame + ":" + framer.getName() + ":" + framer.getFrame());
+		}
+	}
+
+	@Test
+	public void testLazyChildren() {
+		String input = "<message xmlns=\"jabber:client\"><body>Hi &amp; bye</body>"
+				+ "<x xmlns='jabber:x:data' type='form'><field var=\"a\"/></x>tail</message>";
+		char[] data = input.toCharArray();
+		DomBuilderHandler handler = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true);
+
+		for (int i = 0; i < data.length; i++) {
+			parser.parse(handler, data, i, i + 1);
+		}
+
+		Element el = handler.getParsedElements().poll();
+		assertNotNull(el);
+		assertSame("message", el.getName());
+		assertSame("jabber:client", el.getXMLNS());
+		assertTrue(((LazyChildList) el.children).isLazy());
+		assertEquals(input, el.toString());
+
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		assertNull(el.writeTo(buf));
+		assertEquals(input, new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+		assertTrue(((LazyChildList) el.children).isLazy());
+
+		Element copy = el.clone();
+		assertTrue(((LazyChildList) copy.children).isLazy());
+
+		assertEquals("Hi &amp; bye", el.getChildCData(new String[]{"message", "body"}));
+		assertFalse(((LazyChildList) el.children).isLazy());
+		assertSame("jabber:client", el.getChild("body").getXMLNS());
+		assertSame("jabber:x:data", el.getChild("x").getXMLNS());
+		assertEquals("a", el.findChild(new String[]{"message", "x", "field"}).getAttributeStaticStr("var"));
+		assertEquals("tail", el.getCData());
+		assertEquals(3, el.children.size());
+
+		DomBuilderHandler eager = new DomBuilderHandler();
+		parser.parse(eager, data, 0, data.length);
+		Element expected = eager.getParsedElements().poll();
+		assertEquals(expected.toString(), el.toString());
+		assertEquals(input, copy.toString());
+		assertEquals(input, copy.clone().toString());
+
+		el.getChild("body").setCData("changed");
+		assertTrue(el.toString().contains("<body>changed</body>"));
+		assertTrue(copy.toString().contains("Hi &amp; bye"));
+
+		handler = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true);
+		data = "<a xmlns:p='urn:p'><p:b/></a><c/>".toCharArray();
+		parser.parse(handler, data, 0, data.length);
+		el = handler.getParsedElements().poll();
+		assertSame("b", el.getChildren().get(0).getName());
+		assertSame("urn:p", el.getChildren().get(0).getXMLNS());
+		assertNull(handler.getParsedElements().poll().getChildren());
+
+		// Unparsed content is forwarded as received, compare trees not text
+		handler = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true);
+		input = "<message><x:body xmlns:x='urn:x' a = 'v'>hi<!-- c --></x:body></message>";
+		data = input.toCharArray();
+		parser.parse(handler, data, 0, data.length);
+		el = handler.getParsedElements().poll();
+		eager = new DomBuilderHandler();
+		parser.parse(eager, data, 0, data.length);
+		expected = eager.getParsedElements().poll();
+		assertEquals(input, el.toString());
+		assertFalse(expected.toString().equals(el.toString()));
+		assertTrue(expected.equalsDeep(el));
+		assertTrue(el.equalsDeep(expected));
+		assertEquals(expected.toString(), el.toString());
+
+		final AtomicBoolean error = new AtomicBoolean(false);
+
+		handler = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true) {
+			@Override
+			public void error(String errorMessage) {
+				error.set(true);
+			}
+		};
+		data = "<message><a></b></message>".toCharArray();
+		parser.parse(handler, data, 0, data.length);
+		assertTrue(error.get());
+		assertTrue(handler.getParsedElements().isEmpty());
+	}
+
+	@Test
+	public void testLazyChildrenWhitespace() {
+		String[] inputs = {"<message to=\"x\"> <body>hi</body> <x/> </message>", "<message>  </message>",
+				"<message>\n<body> </body>\n</message>"};
+
+		for (String input : inputs) {
+			char[] data = input.toCharArray();
+			DomBuilderHandler lazy = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true);
+			DomBuilderHandler eager = new DomBuilderHandler();
+
+			parser.parse(lazy, data, 0, data.length);
+			parser.parse(eager, data, 0, data.length);
+
+			Element el = lazy.getParsedElements().poll();
+			Element expected = eager.getParsedElements().poll();
+
+			assertEquals(expected.getCData(), el.getCData());
+			assertEquals(expected.getChildren().size(), el.getChildren().size());
+			assertEquals(expected.toString(), el.toString());
+			assertEquals(input, el.toString());
+		}
+	}
+
+	@Test
+	public void testSkipContent() {
+		String payload = "<item id='1'><photo a=\"/>'\">base64&amp;data</photo><x/></item><item/>";
+		char[] data = ("<iq type='set'><pubsub><publish>" + payload + "</publish></pubsub><query/></iq>").toCharArray();
+
+		SkipRecordingHandler whole = new SkipRecordingHandler();
+		SkipRecordingHandler single = new SkipRecordingHandler();
+
+		parser.parse(whole, data, 0, data.length);
+		for (int i = 0; i < data.length; i++) {
+			parser.parse(single, new char[]{data[i]}, 0, 1);
+		}
+		for (SkipRecordingHandler handler : new SkipRecordingHandler[]{whole, single}) {
+			assertFalse(handler.failed);
+			assertEquals("start:iq type=set\nstart:pubsub\nstart:publish\nskipped:" + payload.length()
+					+ "\nend:publish\nend:pubsub\nstart:query\nend:query\nend:iq\n", handler.events.toString());
+		}
+
+		data = "<iq><publish><item>\u0001</item></publish></iq>".toCharArray();
+		SkipRecordingHandler invalid = new SkipRecordingHandler();
+		parser.parse(invalid, data, 0, data.length);
+		assertTrue(invalid.failed);
+
+		String[] mismatched = { "<iq><publish><a></b></publish></iq>", "<iq><publish><a></ab></publish></iq>",
+				"<iq><publish><ab></a></publish></iq>", "<iq><publish><a><b/></a></pub></iq>",
+				"<iq><publish><a></a b></publish></iq>" };
+
+		for (String input : mismatched) {
+			data = input.toCharArray();
+			invalid = new SkipRecordingHandler();
+			for (int i = 0; i < data.length; i++) {
+				parser.parse(invalid, data, i, i + 1);
+			}
+			assertTrue(input, invalid.failed);
+		}
+
+		data = "<iq><publish><a\n x='1'><b/><c></c ></a><a/></publish ></iq>".toCharArray();
+		SkipRecordingHandler valid = new SkipRecordingHandler();
+		parser.parse(valid, data, 0, data.length);
+		assertFalse(valid.events.toString(), valid.failed);
+	}
+
+	@Test
+	public void testErrorInSplitInput() {
+		String[][] inputs = { { "<a>", "<b c=\u0001 d='x'>", "" }, { "<\ud83d", " ;<x", "" } };
+
+		for (String[] chunks : inputs) {
+			RecordingHandler handler = new RecordingHandler();
+
+			for (String chunk : chunks) {
+				char[] data = chunk.toCharArray();
+
+				parser.parse(handler, data, 0, data.length);
+			}
+			assertTrue(handler.failed);
+
+			// Parser keeps reporting the error for any further data
+			handler.failed = false;
+			parser.parse(handler, "<c/>".toCharArray(), 0, 4);
+			assertTrue(handler.failed);
+		}
+	}
+
+	@Test
+	public void testCaptureLimit() {
+		SimpleParser limited = new SimpleParser();
+		limited.MAX_CDATA_SIZE = 16;
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 64; i++) {
+			text.append('a');
+		}
+		char[] data = ("<message><publish>" + text + "</publish></message>").toCharArray();
+
+		SkipRecordingHandler handler = new SkipRecordingHandler() {
+			@Override
+			public Directive contentDirective() {
+				return super.contentDirective() == Directive.SKIP ? Directive.CAPTURE : Directive.PARSE;
+			}
+
+			@Override
+			public void skippedContent(long length, CharSlice content) {
+				events.append("skipped:").append(content).append('\n');
+			}
+		};
+		limited.parse(handler, data, 0, data.length);
+		assertTrue(handler.failed);
+		assertFalse(handler.events.toString().contains("skipped:"));
+		assertEquals(-1, handler.events.indexOf("end:publish"));
+
+		// The limit is found in the text itself, without waiting for the next tag
+		handler = new SkipRecordingHandler() {
+			@Override
+			public Directive contentDirective() {
+				return super.contentDirective() == Directive.SKIP ? Directive.CAPTURE : Directive.PARSE;
+			}
+		};
+		data = ("<message><publish>" + text).toCharArray();
+		limited = new SimpleParser();
+		limited.MAX_CDATA_SIZE = 16;
+		limited.parse(handler, data, 0, data.length);
+		assertTrue(handler.failed);
+	}
+
+	@Test
+	public void testRootConsumer() {
+		List<String> roots = new ArrayList<>();
+		DomBuilderHandler handler = new DomBuilderHandler(new DefaultElementFactory(), el -> roots.add(el.getName()));
+		char[] data = "<message><body>a</body></message><iq type='get'/><presence>".toCharArray();
+
+		parser.parse(handler, data, 0, data.length);
+		assertEquals(2, roots.size());
+		assertEquals("message", roots.get(0));
+		assertEquals("iq", roots.get(1));
+		assertTrue(handler.getParsedElements().isEmpty());
+
+		data = "</presence>".toCharArray();
+		parser.parse(handler, data, 0, data.length);
+		assertEquals("presence", roots.get(2));
+		assertTrue(handler.getParsedElements().isEmpty());
+	}
+
+	@Test
+	public void testStreamMode() {
+		List<Element> roots = new ArrayList<>();
+		List<Boolean> opened = new ArrayList<>();
+		DomBuilderHandler[] holder = new DomBuilderHandler[1];
+		DomBuilderHandler handler = new DomBuilderHandler(new DefaultElementFactory(), SymbolTable.getDefault(), true,
+				true, el -> {
+					roots.add(el);
+					opened.add(holder[0].isStreamOpened());
+				});
+		holder[0] = handler;
+		String stream = "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>";
+		char[] data = (stream + "<message to='a@b'><body>Hi</body></message> \n<iq type='get'/>" + stream
+				+ "<presence/></stream:stream>").toCharArray();
+
+		for (int i = 0; i < data.length; i++) {
+			parser.parse(handler, data, i, i + 1);
+		}
+
+		assertEquals(6, roots.size());
+		assertSame("stream", roots.get(0).getName());
+		assertSame("message", roots.get(1).getName());
+		assertSame("jabber:client", roots.get(1).getXMLNS());
+		assertEquals("Hi", roots.get(1).getChildCData(new String[]{"message", "body"}));
+		assertSame("iq", roots.get(2).getName());
+		assertSame("stream", roots.get(3).getName());
+		assertSame("presence", roots.get(4).getName());
+		assertSame(roots.get(3), roots.get(5));
+		assertNull(roots.get(0).getChildren());
+		assertNull(roots.get(0).getCData());
+		assertNull(roots.get(3).getChildren());
+		assertEquals(Arrays.asList(true, true, true, true, true, false), opened);
+		assertTrue(handler.getParsedElements().isEmpty());
+		assertEquals(2, handler.getKeepAliveCount());
+	}
+
+	@Test
+	public void testNamespacePrefixScope() {
+		DomBuilderHandler handler = new DomBuilderHandler();
+		char[] data = ("<a xmlns:p='urn:a'><b xmlns:p='urn:b' xmlns:q='urn:q'><p:c/><q:c/></b><p:d/><q:d/></a>"
+				+ "<p:e/>").toCharArray();
+
+		parser.parse(handler, data, 0, data.length);
+
+		Element a = handler.getParsedElements().poll();
+		Element b = a.getChild("b");
+		assertSame("urn:b", b.getChildren().get(0).getXMLNS());
+		assertSame("c", b.getChildren().get(1).getName());
+		assertSame("urn:q", b.getChildren().get(1).getXMLNS());
+		assertSame("d", a.getChildren().get(1).getName());
+		assertSame("urn:a", a.getChildren().get(1).getXMLNS());
+		assertEquals("q:d", a.getChildren().get(2).getName());
+		assertEquals("p:e", handler.getParsedElements().poll().getName());
+	}
+
+	@Test
+	public void testKeepAlives() {
+		DomBuilderHandler handler = new DomBuilderHandler();
+		RecordingHandler recording = new RecordingHandler();
+		String[] input = {"<iq/>", " ", "\n", " \t ", "<message> <body>", " ", "</body></message>", "  ", "x"};
+
+		for (String part : input) {
+			char[] data = part.toCharArray();
+			parser.parse(handler, data, 0, data.length);
+			parser.parse(recording, data, 0, data.length);
+		}
+		assertEquals(4, handler.getKeepAliveCount());
+		assertSame("iq", handler.getParsedElements().poll().getName());
+		assertEquals(" ", handler.getParsedElements().poll().getChildCData(new String[]{"message", "body"}));
+		assertFalse(recording.failed);
+		assertEquals("start:iq\nend:iq\nstart:message\ncdata: \nstart:body\ncdata: \nend:body\nend:message\n",
+				recording.events.toString());
+	}
+
+	private static ByteBuffer wrap(byte[] bytes, int from, int to, boolean direct) {
+		ByteBuffer buf = direct ? ByteBuffer.allocateDirect(to - from) : ByteBuffer.allocate(to - from);
+		buf.put(bytes, from, to - from);
+		buf.flip();
+		return buf;
+	}
+
+	private static class RecordingHandler implements SimpleHandler {
+
+		final StringBuilder events = new StringBuilder();
+		private Object state;
+		boolean failed = false;
+
+		@Override
+		public void error(String errorMessage) {
+			failed = true;
+			events.append("error:").append(errorMessage).append('\n');
+		}
+
+		@Override
+		public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+			events.append("start:").append(name);
+			if (attr_names != null) {
+				for (int i = 0; i < attr_names.length && attr_names[i] != null; i++) {
+					events.append(' ').append(attr_names[i]).append('=').append(attr_values[i]);
+				}
+			}
+			events.append('\n');
+		}
+
+		@Override
+		public void elementCData(StringBuilder cdata) {
+			events.append("cdata:").append(cdata).append('\n');
+		}
+
+		@Override
+		public boolean endElement(StringBuilder name) {
+			events.append("end:").append(name).append('\n');
+			return true;
+		}
+
+		@Override
+		public void otherXML(StringBuilder other) {
+			events.append("other:").append(other).append('\n');
+		}
+
+		@Override
+		public void saveParserState(Object state) {
+			this.state = state;
+		}
+
+		@Override
+		public Object restoreParserState() {
+			return state;
+		}
+	}
+
+	private static class SliceRecordingHandler extends RecordingHandler implements SimpleSliceHandler {
+
+		private CharSlice lastName;
+		private CharSlice lastCData;
+
+		@Override
+		public void startElement(CharSlice name, CharSlice[] attr_names, CharSlice[] attr_values) {
+			lastName = name;
+			super.startElement(name.appendTo(new StringBuilder()), toBuilders(attr_names), toBuilders(attr_values));
+		}
+
+		@Override
+		public void elementCData(CharSlice cdata) {
+			lastCData = cdata;
+			super.elementCData(cdata.appendTo(new StringBuilder()));
+		}
+
+		@Override
+		public boolean endElement(CharSlice name) {
+			return super.endElement(name.appendTo(new StringBuilder()));
+		}
+
+		@Override
+		public void otherXML(CharSlice other) {
+			super.otherXML(other.appendTo(new StringBuilder()));
+		}
+
+		private static StringBuilder[] toBuilders(CharSlice[] slices) {
+			if (slices == null) {
+				return null;
+			}
+			StringBuilder[] result = new StringBuilder[slices.length];
+			for (int i = 0; i < slices.length && slices[i] != null; i++) {
+				result[i] = slices[i].appendTo(new StringBuilder());
+			}
+			return result;
+		}
+	}
+
+	private static class ChunkRecordingHandler extends RecordingHandler implements SimpleCDataChunkHandler {
+
+		private final StringBuilder chunks = new StringBuilder();
+		private int lastChunks = 0;
+		private int maxChunk = 0;
+
+		@Override
+		public void elementCDataChunk(CharSlice chunk, boolean last) {
+			assertEquals(0, lastChunks);
+			chunk.appendTo(chunks);
+			maxChunk = Math.max(maxChunk, chunk.length());
+			if (last) {
+				++lastChunks;
+			}
+		}
+	}
+
+	private static class SkipRecordingHandler extends RecordingHandler implements SimpleSkipHandler {
+
+		private String last;
+
+		@Override
+		public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+			last = name.toString();
+			super.startElement(name, attr_names, attr_values);
+		}
+
+		@Override
+		public Directive contentDirective() {
+			return "publish".equals(last) ? Directive.SKIP : Directive.PARSE;
+		}
+
+		@Override
+		public void skippedContent(long length, CharSlice content) {
+			assertNull(content);
+			events.append("skipped:").append(length).append('\n');
+		}
+	}
+
 	private class DomBuilderHandlerImpl extends DomBuilderHandler {
 
 		private AtomicBoolean error;